@@ -25,9 +25,45 @@ public final class Stats {
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
-				+ ", TLB misses " + numTLBMisses);
+				+ ", TLB misses " + numTLBMisses + " ("
+				+ (userTicks > 0 ? numTLBMisses * 1000000L * UserTick
+						/ userTicks : 0)
+				+ " per million instructions), TLB entries prefilled "
+				+ numTLBPrefills + ", waits for pages in flight "
+				+ numInFlightWaits);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		System.out.println("Page cache: hits " + numPageCacheHits
+				+ ", misses " + numPageCacheMisses);
+		System.out.println("Frames: free " + numFreeFrames
+				+ ", low watermark " + minFreeFrames);
+		System.out.println("Swap I/O: reads " + numSwapReads + " ("
+				+ numSwapPagesRead + " pages), writes " + numSwapWrites
+				+ " (" + numSwapPagesWritten + " pages), write-backs discarded "
+				+ numWriteBacksDiscarded);
+		System.out.println("Swap cache: hits " + numSwapCacheHits
+				+ ", misses " + numSwapCacheMisses + ", stored "
+				+ numSwapCachePagesStored + " pages at "
+				+ (numSwapCachePagesStored > 0 ? numSwapCacheBytesStored * 100
+						/ numSwapCachePagesStored / Processor.pageSize : 0)
+				+ "% of their size, spilled " + numSwapCachePagesSpilled);
+		System.out.println("Zero page: mappings " + numZeroPageMappings
+				+ ", copies on write " + numZeroPageCopies);
+		System.out.println("Prefetch: pages " + numPrefetchedPages
+				+ ", hits " + numPrefetchHits + ", wasted "
+				+ numPrefetchesWasted + ", faulted around "
+				+ numFaultAroundPages);
+		System.out.println("Page merging: merged " + numPagesMerged + " ("
+				+ numZeroPagesMerged + " into the zero frame), copied on write "
+				+ numMergedPageCopies + ", most frames saved at once "
+				+ maxMergedFramesSaved);
+		System.out.println("Load control: local evictions "
+				+ numLocalEvictions + ", suspensions " + numSuspensions);
+		System.out.println("Replacement: evictions " + numPageEvictions
+				+ ", direct reclaims " + numDirectReclaims
+				+ ", faults per million instructions "
+				+ (userTicks > 0 ? numPageFaults * 1000000L * UserTick
+						/ userTicks : 0));
 	}
 
 	/**
@@ -69,6 +105,122 @@ public final class Stats {
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/** The number of file page lookups served by the kernel page cache. */
+	public int numPageCacheHits = 0;
+
+	/** The number of file page lookups the kernel page cache had to fill. */
+	public int numPageCacheMisses = 0;
+
+	/** The number of physical frames currently free. */
+	public int numFreeFrames = 0;
+
+	/** The lowest number of physical frames that have been free at once. */
+	public int minFreeFrames = 0;
+
+	/** The number of pages evicted from memory to make room for others. */
+	public int numPageEvictions = 0;
+
+	/**
+	 * The number of page faults that found no free frame, and had to evict a
+	 * page themselves.
+	 */
+	public int numDirectReclaims = 0;
+
+	/** The number of requests that read pages back from swap. */
+	public int numSwapReads = 0;
+
+	/** The number of pages read back from swap. */
+	public int numSwapPagesRead = 0;
+
+	/** The number of requests that wrote pages out to swap. */
+	public int numSwapWrites = 0;
+
+	/** The number of pages written out to swap. */
+	public int numSwapPagesWritten = 0;
+
+	/**
+	 * The number of pages queued for write-back whose process exited first,
+	 * and which were freed instead of being kept in swap.
+	 */
+	public int numWriteBacksDiscarded = 0;
+
+	/** The number of pages read back from swap found in the swap cache. */
+	public int numSwapCacheHits = 0;
+
+	/** The number of pages read back from swap not found in the swap cache. */
+	public int numSwapCacheMisses = 0;
+
+	/** The number of pages compressed into the swap cache. */
+	public int numSwapCachePagesStored = 0;
+
+	/** The total compressed size of the pages stored in the swap cache. */
+	public long numSwapCacheBytesStored = 0;
+
+	/** The number of pages moved from the swap cache to the swap file. */
+	public int numSwapCachePagesSpilled = 0;
+
+	/**
+	 * The number of translations reloaded into the TLB when a process was
+	 * switched in.
+	 */
+	public int numTLBPrefills = 0;
+
+	/**
+	 * The number of page faults on a page another thread was already reading
+	 * in, which waited for that read instead of starting another.
+	 */
+	public int numInFlightWaits = 0;
+
+	/** The number of page faults served by mapping the shared zero frame. */
+	public int numZeroPageMappings = 0;
+
+	/** The number of writes that gave a zero page a frame of its own. */
+	public int numZeroPageCopies = 0;
+
+	/**
+	 * The number of COFF pages read in together with a faulting neighbour.
+	 */
+	public int numFaultAroundPages = 0;
+
+	/** The number of pages read in before they were referenced. */
+	public int numPrefetchedPages = 0;
+
+	/** The number of prefetched pages referenced while resident. */
+	public int numPrefetchHits = 0;
+
+	/** The number of prefetched pages evicted or freed unreferenced. */
+	public int numPrefetchesWasted = 0;
+
+	/**
+	 * The number of resident pages the page merger found identical to
+	 * another, and mapped to a single frame.
+	 */
+	public int numPagesMerged = 0;
+
+	/** The number of merged pages found to hold only zeros. */
+	public int numZeroPagesMerged = 0;
+
+	/** The number of writes that gave a merged page a frame of its own. */
+	public int numMergedPageCopies = 0;
+
+	/**
+	 * The most frames that pages merged into shared frames, other than the
+	 * zero frame, saved at one time.
+	 */
+	public int maxMergedFramesSaved = 0;
+
+	/**
+	 * The number of page faults that evicted a page of the faulting process
+	 * because it was at its resident-set limit.
+	 */
+	public int numLocalEvictions = 0;
+
+	/**
+	 * The number of times a process was suspended because the resident sets
+	 * of all processes did not fit in memory.
+	 */
+	public int numSuspensions = 0;
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
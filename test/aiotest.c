@@ -0,0 +1,128 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Exercise iosetup() and ioenter(): write a file in blocks through the
+ * rings, read it back the same way, and check that a pipe read with no data
+ * completes at once with -1.
+ */
+
+#define ENTRIES	16
+#define BLOCKS	8
+#define BLOCKSIZE	512
+
+int sqMemory[2 + 6*ENTRIES];
+int cqMemory[2 + 2*ENTRIES];
+
+struct ioSubmissionRing *sq = (struct ioSubmissionRing *) sqMemory;
+struct ioCompletionRing *cq = (struct ioCompletionRing *) cqMemory;
+
+char data[BLOCKS][BLOCKSIZE];
+char copy[BLOCKS][BLOCKSIZE];
+
+void submit(int opcode, int fd, void *buffer, int length, int offset,
+	    int userData)
+{
+  struct ioSubmission *s = &sq->entries[sq->tail % ENTRIES];
+
+  s->opcode = opcode;
+  s->fd = fd;
+  s->buffer = buffer;
+  s->length = length;
+  s->offset = offset;
+  s->userData = userData;
+  sq->tail++;
+}
+
+/* Wait for count completions, and check that each returned expected. */
+int reap(int count, int expected)
+{
+  int failed = 0;
+
+  if (ioenter(count)==-1) {
+    printf("ioenter failed\n");
+    return 1;
+  }
+
+  for (; count>0; count--) {
+    struct ioCompletion *c;
+
+    if (cq->head==cq->tail) {
+      printf("missing completion\n");
+      return 1;
+    }
+
+    c = &cq->entries[cq->head % ENTRIES];
+    if (c->result!=expected) {
+      printf("request %d returned %d\n", c->userData, c->result);
+      failed = 1;
+    }
+    cq->head++;
+  }
+
+  return failed;
+}
+
+int main(int argc, char** argv)
+{
+  int fd, fds[2], i, j;
+
+  if (iosetup(ENTRIES, sq, cq)==-1) {
+    printf("iosetup failed\n");
+    return 1;
+  }
+
+  fd = creat("aiotest.dat");
+  if (fd==-1) {
+    printf("Unable to create aiotest.dat\n");
+    return 1;
+  }
+
+  for (i=0; i<BLOCKS; i++) {
+    for (j=0; j<BLOCKSIZE; j++)
+      data[i][j] = 'a' + (i + j) % 26;
+    submit(ioOpWrite, fd, data[i], BLOCKSIZE, i*BLOCKSIZE, i);
+  }
+  if (reap(BLOCKS, BLOCKSIZE))
+    return 1;
+
+  for (i=0; i<BLOCKS; i++)
+    submit(ioOpRead, fd, copy[i], BLOCKSIZE, i*BLOCKSIZE, i);
+  if (reap(BLOCKS, BLOCKSIZE))
+    return 1;
+
+  for (i=0; i<BLOCKS; i++) {
+    for (j=0; j<BLOCKSIZE; j++) {
+      if (copy[i][j]!=data[i][j]) {
+	printf("block %d differs at byte %d\n", i, j);
+	return 1;
+      }
+    }
+  }
+
+  close(fd);
+  unlink("aiotest.dat");
+
+  if (pipe(fds)==-1) {
+    printf("pipe failed\n");
+    return 1;
+  }
+
+  submit(ioOpRead, fds[0], copy[0], BLOCKSIZE, -1, 0);
+  if (reap(1, -1))
+    return 1;
+
+  submit(ioOpWrite, fds[1], data[0], 3, -1, 0);
+  if (reap(1, 3))
+    return 1;
+
+  submit(ioOpNop, 0, 0, 0, 0, 0);
+  if (reap(1, 0))
+    return 1;
+
+  close(fds[0]);
+  close(fds[1]);
+
+  printf("aiotest passed\n");
+  return 0;
+}
@@ -108,16 +108,99 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
     return numTokens;
 }
 
+/**
+ * execCommand
+ *
+ * Executes the program named by argv[0] with the specified arguments.
+ *
+ * Returns the process ID of the new process, or -1 on error.
+ */
+static int execCommand(int argc, char *argv[]) {
+    char prog[BUFFERSIZE];
+    int pid;
+
+    strcpy(prog, argv[0]);
+    strcat(prog, ".coff");
+
+    pid = exec(prog, argc, argv);
+    if (pid == -1) {
+	printf("%s: exec failed.\n", argv[0]);
+    }
+    return pid;
+}
+
+/**
+ * execRedirected
+ *
+ * Executes a command with file descriptor target temporarily replaced by fd,
+ * which the new process inherits. The shell's own descriptor is restored
+ * before returning.
+ *
+ * Returns the process ID of the new process, or -1 on error.
+ */
+static int execRedirected(int argc, char *argv[], int target, int fd) {
+    int saved, pid;
+
+    saved = dup(target);
+    close(target);
+    dup(fd);
+    pid = execCommand(argc, argv);
+    close(target);
+    dup(saved);
+    close(saved);
+
+    return pid;
+}
+
+/**
+ * execPipeline
+ *
+ * Executes the commands on either side of the '|' token at argv[split], with
+ * the standard output of the first connected to the standard input of the
+ * second through a pipe. The process ID of the first command is stored in
+ * *writerPid.
+ *
+ * Returns the process ID of the second command, or -1 on error.
+ */
+static int execPipeline(int argc, char *argv[], int split, int *writerPid) {
+    int fds[2], pid;
+
+    if (split == 0 || split == argc-1) {
+	printf("|: Expression Syntax.\n");
+	return -1;
+    }
+
+    if (pipe(fds) == -1) {
+	printf("pipe failed.\n");
+	return -1;
+    }
+
+    *writerPid = execRedirected(split, argv, fdStandardOutput, fds[1]);
+    /* the reader must see end-of-file once the writer exits */
+    close(fds[1]);
+
+    pid = -1;
+    if (*writerPid != -1) {
+	pid = execRedirected(argc-split-1, argv+split+1, fdStandardInput,
+			     fds[0]);
+    }
+    close(fds[0]);
+
+    return pid;
+}
+
 void runline(char* line) {
-    int pid, background, status;
+    int pid, background, status, split, writerPid;
    
-    char args[BUFFERSIZE], prog[BUFFERSIZE];
+    char args[BUFFERSIZE];
     char *argv[MAXARGS];
 
     int argc = tokenizeCommand(line, MAXARGS, argv, args);
     if (argc <= 0)
 	return;
 
+    writerPid = -1;
+
     if (argc > 0 && strcmp(argv[argc-1], "&") == 0) {
 	argc--;
 	background = 1;
@@ -159,12 +242,19 @@ void runline(char* line) {
 	    }
 	}
 	else {
-	    strcpy(prog, argv[0]);
-	    strcat(prog, ".coff");
+	    for (split=0; split<argc; split++) {
+		if (strcmp(argv[split], "|") == 0)
+		    break;
+	    }
+
+	    if (split < argc)
+		pid = execPipeline(argc, argv, split, &writerPid);
+	    else
+		pid = execCommand(argc, argv);
 
-	    pid = exec(prog, argc, argv);
 	    if (pid == -1) {
-		printf("%s: exec failed.\n", argv[0]);
+		if (writerPid != -1 && !background)
+		    join(writerPid, &status);
 		return;
 	    }
 	}
@@ -181,6 +271,9 @@ void runline(char* line) {
 		printf("\n[%d] Done (%d)\n", pid, status);
 		break;
 	    }
+
+	    if (writerPid != -1)
+		join(writerPid, &status);
 	}
 	else {
 	    printf("\n[%d]\n", pid);
@@ -0,0 +1,105 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Exercise shmget(), shmat() and shmdt(): the parent fills a segment, a
+ * child attaches the same segment and changes it, and the parent checks
+ * that it sees the change.
+ */
+
+#define KEY	1234
+#define SIZE	3000
+#define WORDS	(SIZE / sizeof(int))
+
+int child()
+{
+  int shmid, i;
+  int *words;
+
+  shmid = shmget(KEY, SIZE);
+  if (shmid==-1) {
+    printf("child: shmget failed\n");
+    return 1;
+  }
+
+  words = (int *) shmat(shmid);
+  if (words==(int *) -1) {
+    printf("child: shmat failed\n");
+    return 1;
+  }
+
+  for (i=0; i<WORDS; i++) {
+    if (words[i]!=i) {
+      printf("child: word %d is %d\n", i, words[i]);
+      return 1;
+    }
+    words[i] = -i;
+  }
+
+  /* exit without detaching; the segment outlives us while the parent is
+   * attached */
+  return 0;
+}
+
+int main(int argc, char** argv)
+{
+  int shmid, pid, status, i;
+  int *words;
+  char *args[2];
+
+  if (argc==2 && strcmp(argv[1], "child")==0)
+    return child();
+
+  shmid = shmget(KEY, SIZE);
+  if (shmid==-1) {
+    printf("shmget failed\n");
+    return 1;
+  }
+
+  if (shmget(KEY, 2*SIZE)!=-1) {
+    printf("shmget of a larger size should fail\n");
+    return 1;
+  }
+
+  words = (int *) shmat(shmid);
+  if (words==(int *) -1) {
+    printf("shmat failed\n");
+    return 1;
+  }
+
+  for (i=0; i<WORDS; i++)
+    words[i] = i;
+
+  args[0] = "shmtest.coff";
+  args[1] = "child";
+  pid = exec("shmtest.coff", 2, args);
+  if (pid==-1) {
+    printf("Unable to execute the child\n");
+    return 1;
+  }
+
+  if (join(pid, &status)!=1 || status!=0) {
+    printf("child failed\n");
+    return 1;
+  }
+
+  for (i=0; i<WORDS; i++) {
+    if (words[i]!=-i) {
+      printf("word %d is %d after the child ran\n", i, words[i]);
+      return 1;
+    }
+  }
+
+  if (shmdt(words)!=0) {
+    printf("shmdt failed\n");
+    return 1;
+  }
+
+  if (shmdt(words)!=-1) {
+    printf("second shmdt should fail\n");
+    return 1;
+  }
+
+  printf("shmtest passed\n");
+  return 0;
+}
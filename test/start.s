@@ -67,3 +67,11 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(shmget, syscallShmget)
+	SYSCALLSTUB(shmat, syscallShmat)
+	SYSCALLSTUB(shmdt, syscallShmdt)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(dup, syscallDup)
+	SYSCALLSTUB(iosetup, syscallIoSetup)
+	SYSCALLSTUB(ioenter, syscallIoEnter)
+	SYSCALLSTUB(sync, syscallSync)
@@ -25,6 +25,14 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallShmget		13
+#define syscallShmat		14
+#define syscallShmdt		15
+#define syscallPipe		16
+#define syscallDup		17
+#define syscallIoSetup		18
+#define syscallIoEnter		19
+#define syscallSync		20
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -214,6 +222,108 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * Create a pipe: a bounded kernel buffer with a read end and a write end.
+ * fileDescriptors[0] is set to a new file descriptor for the read end, and
+ * fileDescriptors[1] to one for the write end.
+ *
+ * read() on the read end blocks until data is available, and returns 0 once
+ * the pipe is empty and every write end has been closed. write() on the write
+ * end blocks while the pipe is full; a write of at most one page is never
+ * interleaved with data from other writers. Writing to a pipe whose read ends
+ * are all closed fails.
+ *
+ * Other open file descriptors are inherited by processes started with
+ * exec(), but the two returned here are not, so that a child never holds an
+ * end it does not use: the reader would never see end-of-file while it was
+ * open, and the writer would never see the reader go. To hand an end to a
+ * child, place it on another descriptor with dup() first.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fileDescriptors[2]);
+
+/**
+ * Return a new file descriptor referring to the same open file as
+ * fileDescriptor. The lowest-numbered unused descriptor is always returned,
+ * so closing the standard output and calling dup() redirects it. The file is
+ * closed only once all descriptors referring to it have been closed.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Write every modified file page held in the kernel page cache back to disk.
+ * Pages are also written back when the last descriptor of their file is
+ * closed.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int sync();
+
+/* ASYNCHRONOUS I/O SYSCALLS: iosetup(), ioenter() */
+
+#define ioOpRead		0
+#define ioOpWrite		1
+#define ioOpNop			2
+
+#define ioMaxEntries		64
+
+/* A submission ring slot. offset is the file position to transfer at, or -1
+ * to use (and advance) the current file position.
+ */
+struct ioSubmission {
+    int opcode, fd;
+    void *buffer;
+    int length, offset, userData;
+};
+
+/* A completion ring slot. result is what read() or write() would have
+ * returned for the same request, except that a read from an empty pipe, or a
+ * write to a pipe without room for it, completes at once with -1 instead of
+ * waiting.
+ */
+struct ioCompletion {
+    int userData, result;
+};
+
+/* Both rings start with a head and a tail counter. The program advances
+ * sq.tail after filling slots and cq.head after consuming them; the kernel
+ * advances the other two. Slot i of a ring is entries[i % ringEntries].
+ */
+struct ioSubmissionRing {
+    int head, tail;
+    struct ioSubmission entries[1];
+};
+
+struct ioCompletionRing {
+    int head, tail;
+    struct ioCompletion entries[1];
+};
+
+/**
+ * Register a submission ring and a completion ring of entries slots each, in
+ * memory provided by the program (8 + 24 * entries and 8 + 8 * entries bytes
+ * respectively). Both rings are reset to empty. A process can register only
+ * one pair of rings, with at most ioMaxEntries slots.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int iosetup(int entries, struct ioSubmissionRing *sq,
+	    struct ioCompletionRing *cq);
+
+/**
+ * Hand every slot between sq->head and sq->tail to the kernel, as long as the
+ * completion ring has room for its result, then wait until at least
+ * minComplete completions are available (or nothing is left in flight).
+ * Requests run in the background; their completions appear in the completion
+ * ring without further syscalls, so the program can poll cq->tail.
+ *
+ * Returns the number of submissions consumed, or -1 if an error occurred.
+ */
+int ioenter(int minComplete);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
@@ -257,6 +367,38 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* SHARED MEMORY SYSCALLS: shmget(), shmat(), shmdt() */
+
+/**
+ * Return the identifier of the shared memory segment associated with key,
+ * creating a new zero-filled segment of at least size bytes if none exists.
+ * A segment that already exists must be at least size bytes long. Segments
+ * stay in memory while they exist, so a new one is refused if all segments
+ * together would take more than about half of physical memory.
+ *
+ * Returns the segment identifier, or -1 if an error occurred.
+ */
+int shmget(int key, int size);
+
+/**
+ * Attach the shared memory segment identified by shmid to the address space
+ * of the current process. Every process attached to the same segment sees the
+ * same physical memory, so writes by one are immediately visible to the
+ * others.
+ *
+ * Returns the address the segment was attached at, or (void *) -1 if an error
+ * occurred.
+ */
+void *shmat(int shmid);
+
+/**
+ * Detach the shared memory segment attached at address. A segment is
+ * destroyed when the last process attached to it detaches or exits.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int shmdt(void *address);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
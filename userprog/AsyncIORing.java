@@ -0,0 +1,328 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A pair of submission and completion rings shared between a user process
+ * and the kernel, used to keep several file operations in flight at once.
+ *
+ * <p>
+ * Both rings live in the process's virtual memory. Each starts with two
+ * 32-bit counters, <i>head</i> and <i>tail</i>, followed by <i>entries</i>
+ * slots; a slot is addressed by its counter modulo <i>entries</i>. The user
+ * produces submissions by advancing the submission tail, and consumes
+ * completions by advancing the completion head. The kernel owns the other two
+ * counters.
+ *
+ * <p>
+ * A submission slot holds six integers: <i>opcode</i> (<tt>opRead</tt>,
+ * <tt>opWrite</tt> or <tt>opNop</tt>), <i>fd</i>, <i>buffer</i>,
+ * <i>length</i>, <i>offset</i> (-1 for the current file position) and
+ * <i>userData</i>. A completion slot holds <i>userData</i> and the
+ * <i>result</i> the equivalent synchronous syscall would have returned.
+ *
+ * <p>
+ * Submissions are handed to a pool of kernel worker threads, so the simulated
+ * disk delays of different requests overlap each other and the submitting
+ * process keeps running. Workers post completions directly into the
+ * completion ring; the process only traps again to submit more work or to
+ * wait.
+ *
+ * <p>
+ * The workers are shared by every ring, so a request must never wait on
+ * another process: a read of an empty pipe, or a write to a full one,
+ * completes at once with -1 instead. A request holds its own reference to
+ * its file, so closing the descriptor while it is in flight is safe.
+ */
+public class AsyncIORing {
+	/**
+	 * Allocate a new ring pair for the specified process.
+	 *
+	 * @param process the process the rings belong to.
+	 * @param entries the number of slots in each ring.
+	 * @param vaddrSubmissionRing the virtual address of the submission ring.
+	 * @param vaddrCompletionRing the virtual address of the completion ring.
+	 */
+	public AsyncIORing(UserProcess process, int entries,
+			int vaddrSubmissionRing, int vaddrCompletionRing) {
+		this.process = process;
+		this.entries = entries;
+		this.vaddrSubmissionRing = vaddrSubmissionRing;
+		this.vaddrCompletionRing = vaddrCompletionRing;
+
+		lock = new Lock();
+		completed = new Condition2(lock);
+
+		startWorkers();
+	}
+
+	/**
+	 * Return the number of bytes the user must reserve for a submission ring
+	 * with the specified number of slots.
+	 */
+	public static int submissionRingSize(int entries) {
+		return headerSize + entries * submissionEntrySize;
+	}
+
+	/**
+	 * Return the number of bytes the user must reserve for a completion ring
+	 * with the specified number of slots.
+	 */
+	public static int completionRingSize(int entries) {
+		return headerSize + entries * completionEntrySize;
+	}
+
+	/**
+	 * Consume every pending submission, as long as the completion ring has
+	 * room for its result, and queue it for a worker thread. Must be called
+	 * by the process that owns the rings.
+	 *
+	 * @return the number of submissions consumed, or -1 if the rings could
+	 * not be accessed.
+	 */
+	public int submit() {
+		lock.acquire();
+
+		int submissionTail = readInt(vaddrSubmissionRing + 4);
+		int completionHead = readInt(vaddrCompletionRing);
+		if (submissionTail == -1 || completionHead == -1) {
+			lock.release();
+			return -1;
+		}
+
+		int submitted = 0;
+		byte[] slot = new byte[submissionEntrySize];
+
+		while (submissionHead != submissionTail
+				&& inFlight + (completionTail - completionHead) < entries) {
+			int vaddrSlot = vaddrSubmissionRing + headerSize
+					+ (submissionHead % entries) * submissionEntrySize;
+			if (process.readVirtualMemory(vaddrSlot, slot) < slot.length)
+				break;
+
+			submissionHead++;
+			submitted++;
+
+			Request request = new Request(Lib.bytesToInt(slot, 0),
+					Lib.bytesToInt(slot, 4), Lib.bytesToInt(slot, 8),
+					Lib.bytesToInt(slot, 12), Lib.bytesToInt(slot, 16),
+					Lib.bytesToInt(slot, 20));
+
+			inFlight++;
+			if (request.prepare())
+				requests.add(request);
+			else
+				post(request.userData, -1);
+		}
+
+		writeInt(vaddrSubmissionRing, submissionHead);
+
+		lock.release();
+		return submitted;
+	}
+
+	/**
+	 * Wait until at least <i>minComplete</i> completions are waiting in the
+	 * completion ring, or until nothing is left in flight.
+	 *
+	 * @param minComplete the number of completions to wait for.
+	 */
+	public void waitForCompletions(int minComplete) {
+		lock.acquire();
+
+		while (inFlight > 0) {
+			int completionHead = readInt(vaddrCompletionRing);
+			if (completionHead == -1
+					|| completionTail - completionHead >= minComplete)
+				break;
+
+			completed.sleep();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Wait until every submitted request has completed. Called before the
+	 * owning process releases its address space and file table.
+	 */
+	public void drain() {
+		lock.acquire();
+
+		while (inFlight > 0)
+			completed.sleep();
+
+		lock.release();
+	}
+
+	/**
+	 * Post a completion. The caller must hold <tt>lock</tt>.
+	 */
+	private void post(int userData, int result) {
+		byte[] slot = new byte[completionEntrySize];
+		Lib.bytesFromInt(slot, 0, userData);
+		Lib.bytesFromInt(slot, 4, result);
+
+		int vaddrSlot = vaddrCompletionRing + headerSize
+				+ (completionTail % entries) * completionEntrySize;
+		process.writeVirtualMemory(vaddrSlot, slot);
+
+		completionTail++;
+		writeInt(vaddrCompletionRing + 4, completionTail);
+
+		inFlight--;
+		completed.wakeAll();
+	}
+
+	private void complete(int userData, int result) {
+		lock.acquire();
+		post(userData, result);
+		lock.release();
+	}
+
+	private int readInt(int vaddr) {
+		byte[] bytes = new byte[4];
+		if (process.readVirtualMemory(vaddr, bytes) < bytes.length)
+			return -1;
+
+		return Lib.bytesToInt(bytes, 0);
+	}
+
+	private void writeInt(int vaddr, int value) {
+		process.writeVirtualMemory(vaddr, Lib.bytesFromInt(value));
+	}
+
+	/**
+	 * Start the worker threads shared by all rings, if they are not already
+	 * running.
+	 */
+	private static void startWorkers() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (requests == null) {
+			requests = new SynchList();
+
+			int numWorkers = Config.getInteger("AsyncIORing.numWorkers", 4);
+			for (int i = 0; i < numWorkers; i++) {
+				new KThread(new Runnable() {
+					public void run() {
+						while (true)
+							((Request) requests.removeFirst()).run();
+					}
+				}).setName("io worker " + i).fork();
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private class Request implements Runnable {
+		Request(int opcode, int fileDescriptor, int vaddrBuffer, int length,
+				int offset, int userData) {
+			this.opcode = opcode;
+			this.fileDescriptor = fileDescriptor;
+			this.vaddrBuffer = vaddrBuffer;
+			this.length = Math.min(length, maxTransfer);
+			this.offset = offset;
+			this.userData = userData;
+		}
+
+		/**
+		 * Validate this request and capture everything it needs from the
+		 * submitting process. Runs in the context of that process.
+		 */
+		boolean prepare() {
+			if (opcode == opNop)
+				return true;
+
+			if (opcode != opRead && opcode != opWrite)
+				return false;
+			if (length < 0)
+				return false;
+
+			if (fileDescriptor < 0 || fileDescriptor >= UserProcess.maxFiles)
+				return false;
+
+			file = process.fileTable[fileDescriptor];
+			if (file == null)
+				return false;
+
+			UserProcess.referenceFile(file);
+
+			data = new byte[length];
+			if (opcode == opWrite)
+				length = process.readVirtualMemory(vaddrBuffer, data);
+
+			return true;
+		}
+
+		public void run() {
+			int result = 0;
+
+			switch (opcode) {
+			case opRead:
+				if (Pipe.isPipe(file))
+					result = Pipe.readNoWait(file, data, 0, length);
+				else if (offset < 0)
+					result = file.read(data, 0, length);
+				else
+					result = file.read(offset, data, 0, length);
+
+				if (result > 0)
+					result = process.writeVirtualMemory(vaddrBuffer, data, 0,
+							result);
+				break;
+
+			case opWrite:
+				if (Pipe.isPipe(file))
+					result = Pipe.writeNoWait(file, data, 0, length);
+				else if (offset < 0)
+					result = file.write(data, 0, length);
+				else
+					result = file.write(offset, data, 0, length);
+				break;
+			}
+
+			complete(userData, result);
+
+			if (file != null)
+				UserProcess.releaseFile(file);
+		}
+
+		private int opcode, fileDescriptor, vaddrBuffer, length, offset,
+				userData;
+
+		private OpenFile file;
+
+		private byte[] data;
+	}
+
+	/** Read <i>length</i> bytes into <i>buffer</i>. */
+	public static final int opRead = 0;
+	/** Write <i>length</i> bytes from <i>buffer</i>. */
+	public static final int opWrite = 1;
+	/** Do nothing; completes with result 0. */
+	public static final int opNop = 2;
+
+	/** The largest number of slots a ring may have. */
+	public static final int maxEntries = 64;
+
+	private static final int headerSize = 8;
+	private static final int submissionEntrySize = 24;
+	private static final int completionEntrySize = 8;
+	private static final int maxTransfer = 16 * Processor.pageSize;
+
+	private static SynchList requests = null;
+
+	private UserProcess process;
+	private int entries;
+	private int vaddrSubmissionRing, vaddrCompletionRing;
+
+	private int submissionHead = 0, completionTail = 0;
+	private int inFlight = 0;
+
+	private Lock lock;
+	private Condition2 completed;
+}
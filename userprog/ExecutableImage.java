@@ -0,0 +1,268 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+
+/**
+ * A parsed executable that is shared by every process running it. Images are
+ * kept in a kernel-wide cache indexed by file name, so launching the same
+ * program again neither reopens the file nor re-parses its COFF headers.
+ *
+ * <p>
+ * An image also records which physical frames hold the pages of its
+ * read-only sections. A process loading one of those pages first asks the
+ * image for a frame another process already filled, and publishes the frame
+ * it filled itself otherwise, so every process running the program shares a
+ * single copy of its text.
+ */
+public class ExecutableImage {
+	private ExecutableImage(String name, Coff coff) {
+		this.name = name;
+		this.coff = coff;
+
+		int numPages = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			numPages = Math.max(numPages, section.getFirstVPN()
+					+ section.getLength());
+		}
+
+		sharedFrames = new int[numPages];
+		frameReferences = new int[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++)
+			sharedFrames[vpn] = -1;
+	}
+
+	/**
+	 * Return the image of the specified executable, loading it if it is not
+	 * cached. Every successful call must be matched by a call to
+	 * <tt>close()</tt>.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @return the image, or <tt>null</tt> if the file could not be opened or
+	 * is not a valid executable.
+	 */
+	public static ExecutableImage open(String name) {
+		lock.acquire();
+		ExecutableImage image = images.get(name);
+		if (image != null) {
+			image.users++;
+			image.lastUsed = ++useCounter;
+			lock.release();
+			return image;
+		}
+		lock.release();
+
+		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+		if (executable == null) {
+			Lib.debug(dbgProcess, "\topen failed");
+			return null;
+		}
+
+		Coff coff;
+		try {
+			coff = new Coff(executable);
+		}
+		catch (EOFException e) {
+			executable.close();
+			Lib.debug(dbgProcess, "\tcoff load failed");
+			return null;
+		}
+
+		lock.acquire();
+
+		// another process may have loaded the same file meanwhile
+		image = images.get(name);
+		if (image != null) {
+			coff.close();
+		}
+		else {
+			image = new ExecutableImage(name, coff);
+			evictUnusedImages();
+			images.put(name, image);
+		}
+		image.users++;
+		image.lastUsed = ++useCounter;
+
+		lock.release();
+		return image;
+	}
+
+	/**
+	 * Drop the cached image of the specified file, because the file is being
+	 * replaced or removed. Processes already running it keep using it.
+	 *
+	 * @param name the name of the file.
+	 */
+	public static void invalidate(String name) {
+		lock.acquire();
+
+		ExecutableImage image = images.remove(name);
+		if (image != null) {
+			image.stale = true;
+			if (image.users == 0)
+				image.coff.close();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Release this image. A stale image is closed once nobody uses it.
+	 */
+	public void close() {
+		lock.acquire();
+
+		Lib.assertTrue(users > 0);
+		if (--users == 0 && stale)
+			coff.close();
+
+		lock.release();
+	}
+
+	/**
+	 * Return the COFF loader of this image.
+	 *
+	 * @return the COFF loader.
+	 */
+	public Coff getCoff() {
+		return coff;
+	}
+
+	/**
+	 * Return the frame holding the specified read-only page, adding a
+	 * reference to it, if another process has already loaded it.
+	 *
+	 * @param vpn the virtual page number of a page in a read-only section.
+	 * @return the physical page number, or -1 if the page is not loaded.
+	 */
+	public int mapSharedPage(int vpn) {
+		lock.acquire();
+
+		int ppn = sharedFrames[vpn];
+		if (ppn != -1)
+			frameReferences[vpn]++;
+
+		lock.release();
+		return ppn;
+	}
+
+	/**
+	 * Offer a frame the caller has just filled with the specified read-only
+	 * page to other processes. The caller holds the first reference.
+	 *
+	 * @param vpn the virtual page number of a page in a read-only section.
+	 * @param ppn the frame holding the page.
+	 * @return <tt>true</tt> if the frame is now shared, or <tt>false</tt> if
+	 * another frame was published first and the caller's stays private.
+	 */
+	public boolean publishSharedPage(int vpn, int ppn) {
+		lock.acquire();
+
+		boolean published = (sharedFrames[vpn] == -1);
+		if (published) {
+			sharedFrames[vpn] = ppn;
+			frameReferences[vpn] = 1;
+		}
+
+		lock.release();
+		return published;
+	}
+
+	/**
+	 * Drop the caller's reference to the frame mapped at the specified page.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param ppn the frame the caller maps there.
+	 * @return <tt>true</tt> if the caller should free the frame, because it
+	 * was private or the caller held its last reference.
+	 */
+	public boolean releaseSharedPage(int vpn, int ppn) {
+		lock.acquire();
+
+		boolean free = true;
+		if (vpn < sharedFrames.length && sharedFrames[vpn] == ppn) {
+			if (--frameReferences[vpn] == 0)
+				sharedFrames[vpn] = -1;
+			else
+				free = false;
+		}
+
+		lock.release();
+		return free;
+	}
+
+	/**
+	 * Forget the shared frame of the specified page, because it is being
+	 * evicted and every process mapping it has been unmapped.
+	 *
+	 * @param vpn the virtual page number.
+	 */
+	public void evictSharedPage(int vpn) {
+		lock.acquire();
+
+		sharedFrames[vpn] = -1;
+		frameReferences[vpn] = 0;
+
+		lock.release();
+	}
+
+	/**
+	 * Test whether the specified frame is a shared frame of this image.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param ppn the frame mapped there.
+	 * @return <tt>true</tt> if the frame is shared.
+	 */
+	public boolean isSharedPage(int vpn, int ppn) {
+		return vpn < sharedFrames.length && sharedFrames[vpn] == ppn;
+	}
+
+	/**
+	 * Close the least recently used images that nobody is running until
+	 * there is room for one more. The caller must hold <tt>lock</tt>.
+	 */
+	private static void evictUnusedImages() {
+		while (images.size() >= maxCachedImages) {
+			ExecutableImage victim = null;
+			for (ExecutableImage image : images.values()) {
+				if (image.users == 0
+						&& (victim == null || image.lastUsed < victim.lastUsed))
+					victim = image;
+			}
+			if (victim == null)
+				return;
+
+			images.remove(victim.name);
+			victim.coff.close();
+		}
+	}
+
+	private String name;
+	private Coff coff;
+
+	private int users = 0;
+	private long lastUsed;
+	private boolean stale = false;
+
+	/** The shared frame of each read-only page, indexed by VPN, or -1. */
+	private int[] sharedFrames;
+	/** The number of processes mapping each shared frame. */
+	private int[] frameReferences;
+
+	private static HashMap<String, ExecutableImage> images = new HashMap<String, ExecutableImage>();
+
+	private static long useCounter = 0;
+
+	private static final int maxCachedImages = Config.getInteger(
+			"ExecutableImage.maxCached", 4);
+
+	/** Guards the image cache and the shared frame tables of every image. */
+	private static Lock lock = new Lock();
+
+	private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,291 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Allocates physical memory frames using a buddy system. Free memory is kept
+ * as aligned blocks of 2<sup>k</sup> frames, one free list per block size.
+ * Freeing a block merges it with its buddy whenever the buddy is free too, so
+ * runs of contiguous frames survive as long as possible.
+ *
+ * <p>
+ * All state lives in primitive arrays: a bitmap of allocated frames, the
+ * order of each free block keyed by its first frame, and free lists threaded
+ * through per-frame link arrays. A single frame is handed out in constant
+ * time whenever a one-frame block is free, and in at most one split per block
+ * size otherwise.
+ *
+ * <p>
+ * The allocator keeps <tt>Stats.numFreeFrames</tt> up to date and records the
+ * lowest number of free frames ever seen in <tt>Stats.minFreeFrames</tt>.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator in which every one of the specified
+	 * number of frames is free.
+	 *
+	 * @param numFrames the number of physical frames to manage.
+	 */
+	public FrameAllocator(int numFrames) {
+		Lib.assertTrue(numFrames > 0);
+
+		this.numFrames = numFrames;
+
+		maxOrder = 0;
+		while ((2 << maxOrder) <= numFrames)
+			maxOrder++;
+
+		allocated = new long[(numFrames + 63) / 64];
+		blockOrder = new int[numFrames];
+		next = new int[numFrames];
+		prev = new int[numFrames];
+		freeLists = new int[maxOrder + 1];
+
+		for (int ppn = 0; ppn < numFrames; ppn++)
+			blockOrder[ppn] = -1;
+		for (int order = 0; order <= maxOrder; order++)
+			freeLists[order] = -1;
+
+		// carve memory into the largest aligned blocks that fit
+		int ppn = 0;
+		while (ppn < numFrames) {
+			int order = maxOrder;
+			while ((ppn & ((1 << order) - 1)) != 0
+					|| ppn + (1 << order) > numFrames)
+				order--;
+
+			push(ppn, order);
+			ppn += 1 << order;
+		}
+		numFree = numFrames;
+
+		lock = new Lock();
+
+		Machine.stats().numFreeFrames = numFree;
+		Machine.stats().minFreeFrames = numFree;
+	}
+
+	/**
+	 * Allocate one frame.
+	 *
+	 * @return the physical page number of the frame, or -1 if memory is full.
+	 */
+	public int allocate() {
+		lock.acquire();
+		int ppn = allocateBlock(0);
+		lock.release();
+
+		return ppn;
+	}
+
+	/**
+	 * Allocate a run of physically contiguous frames. The run is aligned to
+	 * the smallest power of two not less than <i>count</i>.
+	 *
+	 * @param count the number of frames.
+	 * @return the physical page number of the first frame, or -1 if no run
+	 * that long is free.
+	 */
+	public int allocateContiguous(int count) {
+		Lib.assertTrue(count > 0);
+
+		int order = 0;
+		while ((1 << order) < count)
+			order++;
+		if (order > maxOrder)
+			return -1;
+
+		lock.acquire();
+
+		int first = allocateBlock(order);
+		if (first != -1) {
+			// give back the part of the block that was not asked for
+			for (int ppn = first + count; ppn < first + (1 << order); ppn++)
+				freeBlock(ppn, 0);
+		}
+
+		lock.release();
+		return first;
+	}
+
+	/**
+	 * Allocate <i>count</i> frames at once, for example for all the pages of
+	 * a new process. Either every frame is allocated or none is.
+	 *
+	 * @param ppns the array receiving the physical page numbers.
+	 * @param count the number of frames.
+	 * @return <tt>true</tt> if the frames were allocated.
+	 */
+	public boolean allocate(int[] ppns, int count) {
+		Lib.assertTrue(count >= 0 && count <= ppns.length);
+
+		lock.acquire();
+
+		if (numFree < count) {
+			lock.release();
+			return false;
+		}
+
+		for (int i = 0; i < count; i++)
+			ppns[i] = allocateBlock(0);
+
+		lock.release();
+		return true;
+	}
+
+	/**
+	 * Free one frame.
+	 *
+	 * @param ppn the physical page number of an allocated frame.
+	 */
+	public void free(int ppn) {
+		lock.acquire();
+		freeBlock(ppn, 0);
+		lock.release();
+	}
+
+	/**
+	 * Free a run of contiguous frames.
+	 *
+	 * @param first the physical page number of the first frame.
+	 * @param count the number of frames.
+	 */
+	public void freeContiguous(int first, int count) {
+		lock.acquire();
+		for (int ppn = first; ppn < first + count; ppn++)
+			freeBlock(ppn, 0);
+		lock.release();
+	}
+
+	/**
+	 * Free the first <i>count</i> frames listed in <i>ppns</i>.
+	 *
+	 * @param ppns the physical page numbers.
+	 * @param count the number of frames.
+	 */
+	public void free(int[] ppns, int count) {
+		lock.acquire();
+		for (int i = 0; i < count; i++)
+			freeBlock(ppns[i], 0);
+		lock.release();
+	}
+
+	/**
+	 * Return the number of free frames.
+	 *
+	 * @return the number of free frames.
+	 */
+	public int getNumFree() {
+		return numFree;
+	}
+
+	/**
+	 * Test whether the specified frame is free.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the frame is free.
+	 */
+	public boolean isFree(int ppn) {
+		return (allocated[ppn >> 6] & (1L << (ppn & 63))) == 0;
+	}
+
+	/**
+	 * Allocate a block of 2<sup><i>order</i></sup> frames, splitting a larger
+	 * block if no block of that size is free. The caller must hold
+	 * <tt>lock</tt>.
+	 */
+	private int allocateBlock(int order) {
+		int current = order;
+		while (current <= maxOrder && freeLists[current] == -1)
+			current++;
+		if (current > maxOrder)
+			return -1;
+
+		int first = freeLists[current];
+		remove(first, current);
+
+		while (current > order) {
+			current--;
+			push(first + (1 << current), current);
+		}
+
+		for (int ppn = first; ppn < first + (1 << order); ppn++)
+			allocated[ppn >> 6] |= 1L << (ppn & 63);
+
+		numFree -= 1 << order;
+		if (numFree < Machine.stats().minFreeFrames)
+			Machine.stats().minFreeFrames = numFree;
+		Machine.stats().numFreeFrames = numFree;
+
+		return first;
+	}
+
+	/**
+	 * Free a block of 2<sup><i>order</i></sup> frames and merge it with its
+	 * buddies. The caller must hold <tt>lock</tt>.
+	 */
+	private void freeBlock(int first, int order) {
+		for (int ppn = first; ppn < first + (1 << order); ppn++) {
+			Lib.assertTrue(!isFree(ppn), "frame freed twice");
+			allocated[ppn >> 6] &= ~(1L << (ppn & 63));
+		}
+
+		numFree += 1 << order;
+		Machine.stats().numFreeFrames = numFree;
+
+		while (order < maxOrder) {
+			int buddy = first ^ (1 << order);
+			if (buddy + (1 << order) > numFrames || blockOrder[buddy] != order)
+				break;
+
+			remove(buddy, order);
+			first = Math.min(first, buddy);
+			order++;
+		}
+
+		push(first, order);
+	}
+
+	private void push(int first, int order) {
+		blockOrder[first] = order;
+		prev[first] = -1;
+		next[first] = freeLists[order];
+		if (freeLists[order] != -1)
+			prev[freeLists[order]] = first;
+		freeLists[order] = first;
+	}
+
+	private void remove(int first, int order) {
+		if (prev[first] != -1)
+			next[prev[first]] = next[first];
+		else
+			freeLists[order] = next[first];
+
+		if (next[first] != -1)
+			prev[next[first]] = prev[first];
+
+		blockOrder[first] = -1;
+	}
+
+	private int numFrames;
+	private int numFree;
+
+	/** The largest block size, as a power of two. */
+	private int maxOrder;
+
+	/** One bit per frame, set while the frame is allocated. */
+	private long[] allocated;
+
+	/** The order of each free block, indexed by its first frame, or -1. */
+	private int[] blockOrder;
+
+	/** The first frame of the first free block of each order, or -1. */
+	private int[] freeLists;
+
+	/** Links between the free blocks of the same order. */
+	private int[] next, prev;
+
+	private Lock lock;
+}
@@ -0,0 +1,543 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A file system that caches the pages of the files of another file system in
+ * physical memory. Every process that opens a file with the same name shares
+ * its cached pages, so repeated reads are served without going to the
+ * underlying file system and without paying its simulated disk delay.
+ *
+ * <p>
+ * The cache holds its pages in physical frames taken from
+ * <tt>UserKernel.frameAllocator</tt>, up to a fixed budget. Pages are replaced
+ * with the CLOCK algorithm. Writes are absorbed by the cache and written back
+ * when their page is evicted, when the last open instance of the file is
+ * closed, or when <tt>sync()</tt> is called. When the kernel runs short of
+ * physical memory it can take clean frames back with
+ * <tt>reclaimFrame()</tt>.
+ */
+public class PageCache implements FileSystem {
+	/**
+	 * Allocate a new page cache in front of the specified file system,
+	 * reserving up to <i>maxPages</i> free physical frames for it.
+	 *
+	 * @param fileSystem the file system whose files should be cached.
+	 * @param maxPages the largest number of frames the cache may hold.
+	 */
+	public PageCache(FileSystem fileSystem, int maxPages) {
+		this.fileSystem = fileSystem;
+		this.maxPages = maxPages;
+
+		lock = new Lock();
+		pageReady = new Condition2(lock);
+
+		ppns = new int[maxPages];
+		owners = new FileInfo[maxPages];
+		pageNumbers = new int[maxPages];
+		used = new boolean[maxPages];
+		dirty = new boolean[maxPages];
+		busy = new boolean[maxPages];
+
+		Arrays.fill(ppns, -1);
+		growFrames();
+	}
+
+	/**
+	 * Return the file system this cache sits in front of. Files that must
+	 * not occupy cache frames, such as the swap file, are opened there
+	 * directly.
+	 *
+	 * @return the underlying file system.
+	 */
+	public FileSystem getBackingFileSystem() {
+		return fileSystem;
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+
+		FileInfo info = files.get(name);
+		if (info == null || truncate) {
+			if (truncate)
+				discardPages(name);
+
+			OpenFile backing = fileSystem.open(name, truncate);
+			if (backing == null) {
+				lock.release();
+				return null;
+			}
+
+			if (info == null) {
+				info = new FileInfo(name);
+				files.put(name, info);
+			}
+			else {
+				info.backing.close();
+			}
+			info.backing = backing;
+			info.length = backing.length();
+		}
+		info.openCount++;
+
+		lock.release();
+		return new File(info);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+
+		discardPages(name);
+
+		// instances that are still open keep using the removed file directly
+		FileInfo info = files.remove(name);
+		if (info != null)
+			info.removed = true;
+
+		lock.release();
+		return fileSystem.remove(name);
+	}
+
+	/**
+	 * Write every dirty cached page back to the underlying file system.
+	 */
+	public void sync() {
+		lock.acquire();
+
+		for (int slot = 0; slot < maxPages; slot++) {
+			while (busy[slot])
+				pageReady.sleep();
+
+			if (owners[slot] != null && dirty[slot])
+				writeBack(slot);
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Give a clean cached frame back to the kernel. Never waits for I/O, so
+	 * it may be called while the kernel is short of memory.
+	 *
+	 * @return the physical page number of the frame released, or -1 if every
+	 * cached frame is busy or dirty.
+	 */
+	public int reclaimFrame() {
+		lock.acquire();
+
+		int ppn = -1;
+		for (int slot = 0; slot < maxPages; slot++) {
+			if (ppns[slot] != -1 && !busy[slot] && !dirty[slot]) {
+				if (owners[slot] != null)
+					unmap(slot);
+
+				ppn = ppns[slot];
+				ppns[slot] = -1;
+				break;
+			}
+		}
+
+		lock.release();
+		return ppn;
+	}
+
+	private int read(FileInfo info, int pos, byte[] buf, int offset, int length) {
+		if (pos < 0 || length < 0)
+			return -1;
+
+		growFrames();
+
+		lock.acquire();
+
+		if (info.removed) {
+			lock.release();
+			return info.backing.read(pos, buf, offset, length);
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+
+		int amount = 0;
+		while (amount < length && pos < info.length) {
+			int page = pos / pageSize;
+			int off = pos % pageSize;
+			int transfer = Math.min(Math.min(length - amount, pageSize - off),
+					info.length - pos);
+
+			int slot = getPage(info, page, true);
+			if (slot == -1) {
+				// no frame to cache into; go straight to the file
+				lock.release();
+				int actual = info.backing.read(pos, buf, offset + amount,
+						transfer);
+				lock.acquire();
+				if (actual <= 0)
+					break;
+				transfer = actual;
+			}
+			else if (slot == -2) {
+				break;
+			}
+			else {
+				System.arraycopy(memory, ppns[slot] * pageSize + off, buf,
+						offset + amount, transfer);
+			}
+
+			pos += transfer;
+			amount += transfer;
+		}
+
+		lock.release();
+		return amount;
+	}
+
+	private int write(FileInfo info, int pos, byte[] buf, int offset, int length) {
+		if (pos < 0 || length < 0)
+			return -1;
+
+		growFrames();
+
+		lock.acquire();
+
+		if (info.removed) {
+			lock.release();
+			return info.backing.write(pos, buf, offset, length);
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+
+		int amount = 0;
+		while (amount < length) {
+			int page = pos / pageSize;
+			int off = pos % pageSize;
+			int transfer = Math.min(length - amount, pageSize - off);
+
+			// only a partial write of a page holding file data must read it
+			boolean needsData = (transfer < pageSize)
+					&& page * pageSize < info.length;
+
+			int slot = getPage(info, page, needsData);
+			if (slot == -1) {
+				lock.release();
+				int actual = info.backing.write(pos, buf, offset + amount,
+						transfer);
+				lock.acquire();
+				if (actual <= 0)
+					break;
+				transfer = actual;
+			}
+			else if (slot == -2) {
+				break;
+			}
+			else {
+				System.arraycopy(buf, offset + amount, memory, ppns[slot]
+						* pageSize + off, transfer);
+				dirty[slot] = true;
+			}
+
+			pos += transfer;
+			amount += transfer;
+			info.length = Math.max(info.length, pos);
+		}
+
+		lock.release();
+		return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	private void close(FileInfo info) {
+		lock.acquire();
+
+		if (--info.openCount == 0) {
+			for (int slot = 0; slot < maxPages; slot++) {
+				while (busy[slot] && owners[slot] == info)
+					pageReady.sleep();
+
+				if (owners[slot] == info && dirty[slot])
+					writeBack(slot);
+			}
+
+			info.backing.close();
+			if (files.get(info.name) == info)
+				files.remove(info.name);
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Find the slot caching the specified page, bringing the page in if it is
+	 * not cached. The caller must hold <tt>lock</tt>, which may be released
+	 * while waiting for I/O.
+	 *
+	 * @return the slot, -1 if no frame is available to cache the page, or -2
+	 * if the page could not be read.
+	 */
+	private int getPage(FileInfo info, int page, boolean needsData) {
+		String key = info.name + "/" + page;
+
+		while (true) {
+			Integer cached = slots.get(key);
+			if (cached == null)
+				break;
+
+			int slot = cached.intValue();
+			if (busy[slot]) {
+				pageReady.sleep();
+				continue;
+			}
+
+			// clean pages survive a close; adopt them for write-back
+			owners[slot] = info;
+			used[slot] = true;
+			Machine.stats().numPageCacheHits++;
+			return slot;
+		}
+
+		int slot = allocateSlot();
+		if (slot == -1)
+			return -1;
+
+		// allocation may have waited for I/O while another thread cached it
+		if (slots.containsKey(key))
+			return getPage(info, page, needsData);
+
+		Machine.stats().numPageCacheMisses++;
+
+		owners[slot] = info;
+		pageNumbers[slot] = page;
+		used[slot] = true;
+		dirty[slot] = false;
+		slots.put(key, new Integer(slot));
+
+		byte[] memory = Machine.processor().getMemory();
+		int paddr = ppns[slot] * pageSize;
+		int initlen = 0;
+
+		if (needsData) {
+			busy[slot] = true;
+			lock.release();
+
+			initlen = info.backing.read(page * pageSize, memory, paddr,
+					pageSize);
+
+			lock.acquire();
+			busy[slot] = false;
+			pageReady.wakeAll();
+
+			if (initlen < 0) {
+				unmap(slot);
+				return -2;
+			}
+		}
+
+		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+		return slot;
+	}
+
+	/**
+	 * Find a slot with a frame and no page in it, evicting a page with the
+	 * CLOCK algorithm if necessary. The caller must hold <tt>lock</tt>.
+	 *
+	 * @return the slot, or -1 if the cache holds no frames at all.
+	 */
+	private int allocateSlot() {
+		while (true) {
+			int numFrames = 0;
+			for (int slot = 0; slot < maxPages; slot++) {
+				if (ppns[slot] == -1)
+					continue;
+
+				numFrames++;
+				if (owners[slot] == null)
+					return slot;
+			}
+			if (numFrames == 0)
+				return -1;
+
+			// two sweeps clear every used bit, so a victim must turn up
+			for (int i = 0; i < 2 * maxPages; i++) {
+				int slot = clockHand;
+				clockHand = (clockHand + 1) % maxPages;
+
+				if (ppns[slot] == -1 || busy[slot])
+					continue;
+
+				if (used[slot]) {
+					used[slot] = false;
+					continue;
+				}
+
+				if (dirty[slot]) {
+					writeBack(slot);
+					// the lock was released; the page may be in use again
+					if (used[slot] || owners[slot] == null)
+						continue;
+				}
+
+				unmap(slot);
+				return slot;
+			}
+
+			// every frame is busy with I/O
+			pageReady.sleep();
+		}
+	}
+
+	/**
+	 * Write a dirty page back to its file. The caller must hold
+	 * <tt>lock</tt>, which is released during the I/O.
+	 */
+	private void writeBack(int slot) {
+		FileInfo info = owners[slot];
+		int pos = pageNumbers[slot] * pageSize;
+		int length = Math.min(pageSize, info.length - pos);
+
+		busy[slot] = true;
+		dirty[slot] = false;
+		lock.release();
+
+		if (length > 0)
+			info.backing.write(pos, Machine.processor().getMemory(),
+					ppns[slot] * pageSize, length);
+
+		lock.acquire();
+		busy[slot] = false;
+		pageReady.wakeAll();
+	}
+
+	/**
+	 * Forget every cached page of the specified file without writing it back.
+	 * The caller must hold <tt>lock</tt>.
+	 */
+	private void discardPages(String name) {
+		for (int slot = 0; slot < maxPages; slot++) {
+			while (busy[slot] && owners[slot] != null
+					&& owners[slot].name.equals(name))
+				pageReady.sleep();
+
+			if (owners[slot] != null && owners[slot].name.equals(name))
+				unmap(slot);
+		}
+	}
+
+	private void unmap(int slot) {
+		slots.remove(owners[slot].name + "/" + pageNumbers[slot]);
+		owners[slot] = null;
+		dirty[slot] = false;
+		used[slot] = false;
+	}
+
+	/**
+	 * Take free physical frames for slots that have none, as long as the
+	 * kernel has more free frames than the cache's budget. Must be called
+	 * without holding <tt>lock</tt>.
+	 */
+	private void growFrames() {
+		if (numEmptySlots() == 0)
+			return;
+
+		while (UserKernel.frameAllocator.getNumFree() > maxPages) {
+			int ppn = UserKernel.frameAllocator.allocate();
+			if (ppn == -1)
+				break;
+
+			lock.acquire();
+			int slot = 0;
+			while (slot < maxPages && ppns[slot] != -1)
+				slot++;
+			if (slot < maxPages)
+				ppns[slot] = ppn;
+			lock.release();
+
+			if (slot == maxPages) {
+				UserKernel.frameAllocator.free(ppn);
+				break;
+			}
+		}
+	}
+
+	private int numEmptySlots() {
+		int count = 0;
+		for (int slot = 0; slot < maxPages; slot++) {
+			if (ppns[slot] == -1)
+				count++;
+		}
+		return count;
+	}
+
+	private class FileInfo {
+		FileInfo(String name) {
+			this.name = name;
+		}
+
+		String name;
+		OpenFile backing;
+		int length;
+		int openCount = 0;
+		boolean removed = false;
+	}
+
+	private class File extends OpenFileWithPosition {
+		File(FileInfo info) {
+			super(PageCache.this, info.name);
+
+			this.info = info;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			return PageCache.this.read(info, pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			return PageCache.this.write(info, pos, buf, offset, length);
+		}
+
+		public int length() {
+			return info.length;
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				PageCache.this.close(info);
+			}
+		}
+
+		private FileInfo info;
+
+		private boolean open = true;
+	}
+
+	private FileSystem fileSystem;
+
+	private int maxPages;
+
+	/** Open files, indexed by name. */
+	private HashMap<String, FileInfo> files = new HashMap<String, FileInfo>();
+
+	/** Cached pages, indexed by file name and page number. */
+	private HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+	private int[] ppns;
+	private FileInfo[] owners;
+	private int[] pageNumbers;
+	private boolean[] used, dirty, busy;
+
+	private int clockHand = 0;
+
+	private Lock lock;
+
+	private Condition2 pageReady;
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,226 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A bounded in-kernel byte buffer connecting a writer to a reader. The two
+ * ends of a pipe are accessed through <tt>OpenFile</tt> objects, so they can
+ * be placed in a process's file table like any other file.
+ *
+ * <p>
+ * A read blocks until at least one byte is available, and returns 0 once the
+ * buffer is empty and every write end has been closed; a read of no bytes
+ * returns 0 at once. A write of at most <tt>capacity</tt> bytes blocks until
+ * it fits in the buffer in its entirety, so it is never interleaved with the
+ * data of another writer.
+ *
+ * <p>
+ * <tt>readNoWait()</tt> and <tt>writeNoWait()</tt> transfer what they can
+ * without waiting, for callers that must never block on a pipe.
+ */
+public class Pipe {
+	/**
+	 * Allocate a new, empty pipe.
+	 */
+	public Pipe() {
+		lock = new Lock();
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
+	}
+
+	/**
+	 * Return an <tt>OpenFile</tt> that reads from this pipe.
+	 *
+	 * @return the read end of this pipe.
+	 */
+	public OpenFile openForReading() {
+		lock.acquire();
+		readers++;
+		lock.release();
+
+		return new File(true);
+	}
+
+	/**
+	 * Return an <tt>OpenFile</tt> that writes to this pipe.
+	 *
+	 * @return the write end of this pipe.
+	 */
+	public OpenFile openForWriting() {
+		lock.acquire();
+		writers++;
+		lock.release();
+
+		return new File(false);
+	}
+
+	/**
+	 * Test whether an open file is an end of a pipe.
+	 *
+	 * @param file the file to test.
+	 * @return <tt>true</tt> if <i>file</i> was returned by
+	 * <tt>openForReading()</tt> or <tt>openForWriting()</tt>.
+	 */
+	public static boolean isPipe(OpenFile file) {
+		return file instanceof File;
+	}
+
+	/**
+	 * Read from the read end of a pipe without waiting for data.
+	 *
+	 * @return the number of bytes read, 0 at end-of-file, or -1 if no data
+	 * is available yet or <i>file</i> is not an open read end.
+	 */
+	public static int readNoWait(OpenFile file, byte[] buf, int offset,
+			int length) {
+		return ((File) file).read(buf, offset, length, false);
+	}
+
+	/**
+	 * Write to the write end of a pipe without waiting for room, writing
+	 * only as much as fits. A write of at most <tt>capacity</tt> bytes is
+	 * still never split.
+	 *
+	 * @return the number of bytes written, or -1 if none could be.
+	 */
+	public static int writeNoWait(OpenFile file, byte[] buf, int offset,
+			int length) {
+		return ((File) file).write(buf, offset, length, false);
+	}
+
+	private int read(byte[] buf, int offset, int length, boolean block) {
+		if (length == 0)
+			return 0;
+
+		lock.acquire();
+
+		if (!block && count == 0 && writers > 0) {
+			lock.release();
+			return -1;
+		}
+
+		while (count == 0 && writers > 0)
+			notEmpty.sleep();
+
+		int amount = Math.min(length, count);
+		for (int i = 0; i < amount; i++) {
+			buf[offset + i] = buffer[head];
+			head = (head + 1) % capacity;
+		}
+		count -= amount;
+
+		if (amount > 0)
+			notFull.wakeAll();
+
+		lock.release();
+		return amount;
+	}
+
+	private int write(byte[] buf, int offset, int length, boolean block) {
+		lock.acquire();
+
+		int amount = 0;
+		while (amount < length) {
+			// small writes wait for room for all of their data at once
+			int needed = (length <= capacity) ? length : 1;
+			if (!block && readers > 0 && capacity - count < needed)
+				break;
+
+			while (readers > 0 && capacity - count < needed)
+				notFull.sleep();
+
+			if (readers == 0)
+				break;
+
+			int transfer = Math.min(length - amount, capacity - count);
+			int tail = (head + count) % capacity;
+			for (int i = 0; i < transfer; i++) {
+				buffer[tail] = buf[offset + amount + i];
+				tail = (tail + 1) % capacity;
+			}
+			count += transfer;
+			amount += transfer;
+
+			notEmpty.wakeAll();
+		}
+
+		lock.release();
+
+		// writing to a pipe nobody can read from, or that is full, is an error
+		return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	private void close(boolean isReadEnd) {
+		lock.acquire();
+
+		if (isReadEnd)
+			readers--;
+		else
+			writers--;
+
+		notEmpty.wakeAll();
+		notFull.wakeAll();
+
+		lock.release();
+	}
+
+	private class File extends OpenFile {
+		File(boolean isReadEnd) {
+			super(null, "pipe");
+
+			this.isReadEnd = isReadEnd;
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				Pipe.this.close(isReadEnd);
+			}
+		}
+
+		public int read(byte[] buf, int offset, int length) {
+			return read(buf, offset, length, true);
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			return write(buf, offset, length, true);
+		}
+
+		int read(byte[] buf, int offset, int length, boolean block) {
+			if (!open || !isReadEnd)
+				return -1;
+
+			return Pipe.this.read(buf, offset, length, block);
+		}
+
+		int write(byte[] buf, int offset, int length, boolean block) {
+			if (!open || isReadEnd)
+				return -1;
+
+			return Pipe.this.write(buf, offset, length, block);
+		}
+
+		private boolean isReadEnd;
+
+		private boolean open = true;
+	}
+
+	/**
+	 * The number of bytes a pipe can buffer. Matches the unit in which
+	 * <tt>UserProcess</tt> transfers syscall data, so every write chunk it
+	 * hands to a pipe is atomic.
+	 */
+	public static final int capacity = Processor.pageSize;
+
+	private byte[] buffer = new byte[capacity];
+
+	private int head = 0, count = 0;
+
+	private int readers = 0, writers = 0;
+
+	private Lock lock;
+
+	private Condition2 notEmpty, notFull;
+}
@@ -5,7 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.VMKernel;
 
-import java.util.LinkedList;
+import java.util.HashMap;
 
 /**
  * A kernel that can support multiple user processes.
@@ -34,10 +34,17 @@ public class UserKernel extends ThreadedKernel {
 		});
 
 		processLock = new Lock();
+		fileReferencesLock = new Lock();
 
-		memoryLock = new Lock();
-		for (int ppn = 0; ppn < Machine.processor().getNumPhysPages(); ppn++)
-			freePages.add(new Integer(ppn));
+		frameAllocator = new FrameAllocator(Machine.processor()
+				.getNumPhysPages());
+
+		if (fileSystem != null && Config.getBoolean("UserKernel.pageCache", true)) {
+			int maxPages = Config.getInteger("PageCache.maxPages", Machine
+					.processor().getNumPhysPages() / 4);
+			pageCache = new PageCache(fileSystem, maxPages);
+			fileSystem = pageCache;
+		}
 	}
 
 	/**
@@ -114,25 +121,12 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (pageCache != null)
+			pageCache.sync();
+
 		super.terminate();
 	}
 	
-	public static void memoryLockAcquire() {
-		//System.err.println("Lock Acquire memoryLockAcquire: " + UserKernel.memoryLock.isHeldByCurrentThread());
-                if(!memoryLock.isHeldByCurrentThread() && !memoryLockAcquired) {
-			memoryLock.acquire();
-			memoryLockAcquired = true;
-		}
-	}
-	
-	public static void memoryLockRelease() {
-              // System.err.println("Lock Release memoryLockAcquire: " + UserKernel.memoryLock.isHeldByCurrentThread());
-		if(!memoryLock.isHeldByCurrentThread() && memoryLockAcquired) {
-			memoryLock.release();
-			memoryLockAcquired = false;
-		}
-	}
-
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 	/** Guards access to process data: lists, exit status tables, etc. */
@@ -142,13 +136,23 @@ public class UserKernel extends ThreadedKernel {
 	/** The number of started processes that have not yet terminated. */
 	public static int numRunningProcesses = 0;
 
-	/** Guards access to the physical page free list. */
-	public static Lock memoryLock;
-	
-	/** The physical page free list. */
-	public static LinkedList<Integer> freePages = new LinkedList<Integer>();
+	/**
+	 * The number of extra file table slots, across all processes, that refer
+	 * to each shared open file. Files opened by a single slot are not listed.
+	 */
+	public static HashMap<OpenFile, Integer> fileReferences = new HashMap<OpenFile, Integer>();
+	/** Guards access to the file reference table. */
+	public static Lock fileReferencesLock;
+
+	/** The physical frame allocator. */
+	public static FrameAllocator frameAllocator;
+
+	/**
+	 * The cache in front of the file system, or <tt>null</tt> if disabled by
+	 * the <tt>UserKernel.pageCache</tt> key.
+	 */
+	public static PageCache pageCache = null;
 
-	private static boolean memoryLockAcquired;
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 }
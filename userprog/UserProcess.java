@@ -4,7 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.io.EOFException;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -290,26 +289,18 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
+		image = ExecutableImage.open(name);
+		if (image == null)
 			return false;
-		}
 
-		try {
-			coff = new Coff(executable);
-		} catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
-			return false;
-		}
+		coff = image.getCoff();
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 			if (section.getFirstVPN() != numPages) {
-				coff.close();
+				image.close();
 				Lib.debug(dbgProcess, "\tfragmented executable");
 				return false;
 			}
@@ -325,7 +316,7 @@ public class UserProcess {
 			argsSize += 4 + argv[i].length + 1;
 		}
 		if (argsSize > pageSize) {
-			coff.close();
+			image.close();
 			Lib.debug(dbgProcess, "\targuments too long");
 			return false;
 		}
@@ -371,26 +362,54 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		// allocate memory
-		UserKernel.memoryLock.acquire();
+		pageTable = new TranslationEntry[numPages];
 
-		if (UserKernel.freePages.size() < numPages) {
-			UserKernel.memoryLock.release();
-			coff.close();
-			Lib.debug(dbgProcess, "\tinsufficient physical memory");
-			return false;
-		}
+		// read-only pages another process has loaded are mapped, not copied
+		boolean[] shared = new boolean[numPages];
+		int numShared = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (!section.isReadOnly())
+				continue;
 
-		pageTable = new TranslationEntry[numPages];
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
 
-		for (int vpn = 0; vpn < numPages; vpn++) {
-			int ppn = ((Integer) UserKernel.freePages.removeFirst()).intValue();
+				int ppn = image.mapSharedPage(vpn);
+				if (ppn != -1) {
+					pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true,
+							false, false);
+					shared[vpn] = true;
+					numShared++;
+				}
+			}
+		}
 
-			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false,
-					false);
+		// allocate memory, taking cached file pages back if necessary
+		int[] ppns = new int[numPages - numShared];
+		while (!UserKernel.frameAllocator.allocate(ppns, ppns.length)) {
+			int ppn = (UserKernel.pageCache != null) ? UserKernel.pageCache
+					.reclaimFrame() : -1;
+			if (ppn == -1) {
+				for (int vpn = 0; vpn < numPages; vpn++) {
+					if (shared[vpn]
+							&& image.releaseSharedPage(vpn, pageTable[vpn].ppn))
+						UserKernel.frameAllocator.free(pageTable[vpn].ppn);
+				}
+				image.close();
+				Lib.debug(dbgProcess, "\tinsufficient physical memory");
+				return false;
+			}
+			UserKernel.frameAllocator.free(ppn);
 		}
 
-		UserKernel.memoryLock.release();
+		for (int vpn = 0, next = 0; vpn < numPages; vpn++) {
+			if (shared[vpn])
+				continue;
+
+			pageTable[vpn] = new TranslationEntry(vpn, ppns[next++], true,
+					false, false, false);
+		}
 
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -401,9 +420,14 @@ public class UserProcess {
 
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
+				if (shared[vpn])
+					continue;
 
 				pageTable[vpn].readOnly = section.isReadOnly();
 				section.loadPage(i, pinVirtualPage(vpn, false));
+
+				if (section.isReadOnly())
+					image.publishSharedPage(vpn, pageTable[vpn].ppn);
 			}
 		}
 
@@ -414,8 +438,11 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		for (int vpn = 0; vpn < pageTable.length; vpn++)
-			UserKernel.freePages.add(new Integer(pageTable[vpn].ppn));
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			int ppn = pageTable[vpn].ppn;
+			if (image.releaseSharedPage(vpn, ppn))
+				UserKernel.frameAllocator.free(ppn);
+		}
 	}
 
 	/**
@@ -455,16 +482,16 @@ public class UserProcess {
 	}
 
 	protected int handleExit(int status) {
+		// workers may still be writing into this address space
+		if (ioRing != null)
+			ioRing.drain();
+
 		for (int i = 0; i < maxFiles; i++)
 			handleClose(i);
 
-		UserKernel.memoryLock.acquire();
-
 		unloadSections();
 
-		UserKernel.memoryLock.release();
-
-		coff.close();
+		image.close();
 
 		UserKernel.processLock.acquire();
 
@@ -510,6 +537,7 @@ public class UserProcess {
 
 		UserProcess childProcess = newUserProcess();
 		childProcess.parentProcess = this;
+		childProcess.inheritFileTable(this);
 
 		UserKernel.processLock.acquire();
 
@@ -521,9 +549,61 @@ public class UserProcess {
 
 		UserKernel.processLock.release();
 
+		if (result == -1) {
+			for (int i = 0; i < maxFiles; i++)
+				childProcess.handleClose(i);
+		}
+
 		return result;
 	}
 
+	/**
+	 * Replace this process's file table with a copy of the parent's, so that
+	 * every open file is shared with the parent, except the descriptors
+	 * marked close-on-exec.
+	 */
+	private void inheritFileTable(UserProcess parent) {
+		for (int i = 0; i < maxFiles; i++) {
+			if (fileTable[i] != null)
+				fileTable[i].close();
+
+			fileTable[i] = parent.closeOnExec[i] ? null : parent.fileTable[i];
+			if (fileTable[i] != null)
+				referenceFile(fileTable[i]);
+		}
+	}
+
+	/**
+	 * Record an additional file table slot referring to an open file.
+	 */
+	static void referenceFile(OpenFile of) {
+		UserKernel.fileReferencesLock.acquire();
+
+		Integer references = UserKernel.fileReferences.get(of);
+		UserKernel.fileReferences.put(of, new Integer(references == null ? 1
+				: references.intValue() + 1));
+
+		UserKernel.fileReferencesLock.release();
+	}
+
+	/**
+	 * Drop one file table slot's reference to an open file, closing the file
+	 * once no slot refers to it anymore.
+	 */
+	static void releaseFile(OpenFile of) {
+		UserKernel.fileReferencesLock.acquire();
+
+		Integer references = UserKernel.fileReferences.get(of);
+		if (references == null)
+			of.close();
+		else if (references.intValue() == 1)
+			UserKernel.fileReferences.remove(of);
+		else
+			UserKernel.fileReferences.put(of, new Integer(references.intValue() - 1));
+
+		UserKernel.fileReferencesLock.release();
+	}
+
 	private int handleJoin(int childID, int vaddrStatus) {
 		Integer integerChildID = new Integer(childID);
 		Integer status;
@@ -567,6 +647,10 @@ public class UserProcess {
 		if (fileDescriptor == -1)
 			return -1;
 
+		// truncating a file makes any image cached from it stale
+		if (create)
+			ExecutableImage.invalidate(fileName);
+
 		OpenFile of = ThreadedKernel.fileSystem.open(fileName, create);
 		if (of == null)
 			return -1;
@@ -650,17 +734,114 @@ public class UserProcess {
 		if (of == null)
 			return -1;
 
-		of.close();
 		fileTable[fileDescriptor] = null;
+		closeOnExec[fileDescriptor] = false;
+		releaseFile(of);
 
 		return 0;
 	}
 
+	private int handlePipe(int vaddrFileDescriptors) {
+		int readDescriptor = -1, writeDescriptor = -1;
+
+		for (int i = 0; i < maxFiles; i++) {
+			if (fileTable[i] == null) {
+				if (readDescriptor == -1) {
+					readDescriptor = i;
+				}
+				else {
+					writeDescriptor = i;
+					break;
+				}
+			}
+		}
+		if (writeDescriptor == -1)
+			return -1;
+
+		byte[] descriptors = new byte[8];
+		Lib.bytesFromInt(descriptors, 0, readDescriptor);
+		Lib.bytesFromInt(descriptors, 4, writeDescriptor);
+		if (writeVirtualMemory(vaddrFileDescriptors, descriptors) < descriptors.length)
+			return -1;
+
+		/*
+		 * A child holding an end it does not use would keep the reader from
+		 * seeing end-of-file, or the writer from seeing the reader go, so
+		 * only ends placed on other descriptors with dup() are inherited.
+		 */
+		Pipe pipe = new Pipe();
+		fileTable[readDescriptor] = pipe.openForReading();
+		fileTable[writeDescriptor] = pipe.openForWriting();
+		closeOnExec[readDescriptor] = true;
+		closeOnExec[writeDescriptor] = true;
+
+		return 0;
+	}
+
+	private int handleIoSetup(int entries, int vaddrSubmissionRing,
+			int vaddrCompletionRing) {
+		if (ioRing != null)
+			return -1;
+		if (entries <= 0 || entries > AsyncIORing.maxEntries)
+			return -1;
+
+		// both rings must be writable, and start out empty
+		byte[] submissionRing = new byte[AsyncIORing.submissionRingSize(entries)];
+		byte[] completionRing = new byte[AsyncIORing.completionRingSize(entries)];
+		if (writeVirtualMemory(vaddrSubmissionRing, submissionRing) < submissionRing.length)
+			return -1;
+		if (writeVirtualMemory(vaddrCompletionRing, completionRing) < completionRing.length)
+			return -1;
+
+		ioRing = new AsyncIORing(this, entries, vaddrSubmissionRing,
+				vaddrCompletionRing);
+		return 0;
+	}
+
+	private int handleIoEnter(int minComplete) {
+		if (ioRing == null)
+			return -1;
+
+		int submitted = ioRing.submit();
+		if (submitted != -1 && minComplete > 0)
+			ioRing.waitForCompletions(minComplete);
+
+		return submitted;
+	}
+
+	private int handleSync() {
+		if (UserKernel.pageCache != null)
+			UserKernel.pageCache.sync();
+
+		return 0;
+	}
+
+	private int handleDup(int fileDescriptor) {
+		if (fileDescriptor < 0 || fileDescriptor >= maxFiles)
+			return -1;
+
+		OpenFile of = fileTable[fileDescriptor];
+		if (of == null)
+			return -1;
+
+		for (int i = 0; i < maxFiles; i++) {
+			if (fileTable[i] == null) {
+				referenceFile(of);
+				fileTable[i] = of;
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
 	private int handleUnlink(int vaddrFileName) {
 		String fileName = readVirtualMemoryString(vaddrFileName, 256);
 		if (fileName == null)
 			return -1;
 
+		ExecutableImage.invalidate(fileName);
+
 		if (!ThreadedKernel.fileSystem.remove(fileName))
 			return -1;
 
@@ -670,7 +851,8 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallPipe = 16, syscallDup = 17,
+			syscallIoSetup = 18, syscallIoEnter = 19, syscallSync = 20;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -724,6 +906,26 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  pipe(int fds[2]);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int  dup(int fd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  iosetup(int entries, void *sq, void *cq);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  ioenter(int minComplete);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  sync();</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall
@@ -770,6 +972,21 @@ public class UserProcess {
 		case syscallJoin:
 			return handleJoin(a0, a1);
 
+		case syscallPipe:
+			return handlePipe(a0);
+
+		case syscallDup:
+			return handleDup(a0);
+
+		case syscallIoSetup:
+			return handleIoSetup(a0, a1, a2);
+
+		case syscallIoEnter:
+			return handleIoEnter(a0);
+
+		case syscallSync:
+			return handleSync();
+
 		default:
 			handleExit(1);
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -812,6 +1029,9 @@ public class UserProcess {
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The cached image of the program this process runs. */
+	protected ExecutableImage image;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 	/** The number of contiguous pages occupied by the program. */
@@ -834,7 +1054,12 @@ public class UserProcess {
 	private byte[] ioBuffer = new byte[ioBufferSize];
 	private static final int ioBufferSize = 1024;
 
+	/** The asynchronous I/O rings registered by this process, if any. */
+	private AsyncIORing ioRing = null;
+
 	protected OpenFile[] fileTable = new OpenFile[maxFiles];
+	/** Set for the descriptors <tt>handleExec()</tt> does not pass on. */
+	private boolean[] closeOnExec = new boolean[maxFiles];
 	protected static final int maxFiles = 16;
 
 	private static final int pageSize = Processor.pageSize;
@@ -0,0 +1,130 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Adaptive replacement (ARC) of Megiddo and Modha. Resident pages are split
+ * between <tt>t1</tt>, pages referenced once since they were loaded, and
+ * <tt>t2</tt>, pages referenced again; both are kept in recency order. The
+ * ghost lists <tt>b1</tt> and <tt>b2</tt> remember pages recently evicted
+ * from each. A fault on a page remembered in <tt>b1</tt> means <tt>t1</tt>
+ * is too small, and a fault on one in <tt>b2</tt> means <tt>t2</tt> is, so
+ * the target size of <tt>t1</tt> moves towards whichever list would have
+ * kept the page.
+ *
+ * <p>
+ * The processor only reports references through used bits, so a resident
+ * page is promoted to <tt>t2</tt> when its used bit is found set at an
+ * eviction, rather than on every access.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new ARC policy.
+	 */
+	public ARCPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+
+		t1 = new FrameQueue(numFrames);
+		t2 = new FrameQueue(numFrames);
+	}
+
+	public void pageLoaded(int ppn) {
+		Long key = new Long(VMKernel.getPageKey(ppn));
+
+		if (b1.contains(key)) {
+			target = Math.min(numFrames, target
+					+ Math.max(1, b2.size() / b1.size()));
+			b1.remove(key);
+			t2.addLast(ppn);
+		}
+		else if (b2.contains(key)) {
+			target = Math.max(0, target - Math.max(1, b1.size() / b2.size()));
+			b2.remove(key);
+			t2.addLast(ppn);
+		}
+		else {
+			t1.addLast(ppn);
+		}
+
+		// only a reference after the faulting access promotes the page
+		VMKernel.clearUsedBits(ppn);
+	}
+
+	public void pageEvicted(int ppn) {
+		Long key = new Long(VMKernel.getPageKey(ppn));
+
+		if (t1.remove(ppn))
+			b1.add(key);
+		else if (t2.remove(ppn))
+			b2.add(key);
+
+		// remember at most one memory's worth of pages per list, two in all
+		trim(b1, numFrames - t1.size());
+		trim(b2, 2 * numFrames - t1.size() - t2.size() - b1.size());
+	}
+
+	public void pageFreed(int ppn) {
+		t1.remove(ppn);
+		t2.remove(ppn);
+	}
+
+	public void updateReferences() {
+		int count = t1.size();
+		int ppn = t1.first();
+		for (int i = 0; i < count; i++) {
+			int next = t1.next(ppn);
+			if (VMKernel.clearUsedBits(ppn)) {
+				t1.remove(ppn);
+				t2.addLast(ppn);
+			}
+			ppn = next;
+		}
+
+		count = t2.size();
+		ppn = t2.first();
+		for (int i = 0; i < count; i++) {
+			int next = t2.next(ppn);
+			if (VMKernel.clearUsedBits(ppn))
+				t2.moveToLast(ppn);
+			ppn = next;
+		}
+	}
+
+	public int chooseVictim() {
+		int victim = -1;
+
+		if (t1.size() > 0 && t1.size() >= Math.max(1, target))
+			victim = t1.firstEvictable();
+		if (victim == -1)
+			victim = t2.firstEvictable();
+		if (victim == -1)
+			victim = t1.firstEvictable();
+
+		return victim;
+	}
+
+	private static void trim(LinkedHashSet<Long> ghosts, int maxSize) {
+		Iterator<Long> oldest = ghosts.iterator();
+		while (ghosts.size() > Math.max(0, maxSize)) {
+			oldest.next();
+			oldest.remove();
+		}
+	}
+
+	private int numFrames;
+
+	/** The target size of <tt>t1</tt>. */
+	private int target = 0;
+
+	/** Frames referenced once, least recently used first. */
+	private FrameQueue t1;
+	/** Frames referenced more than once, least recently used first. */
+	private FrameQueue t2;
+	/** Pages recently evicted from <tt>t1</tt> and <tt>t2</tt>. */
+	private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>(),
+			b2 = new LinkedHashSet<Long>();
+}
@@ -0,0 +1,64 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * An approximation of least recently used replacement by aging. Each frame
+ * has a counter; at every eviction the counters are shifted right and the
+ * used bit of the frame, gathered from the TLB and page tables, is shifted in
+ * at the top. The frame with the smallest counter has gone unreferenced the
+ * longest.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		resident = new boolean[numPhysPages];
+		age = new int[numPhysPages];
+	}
+
+	public void pageLoaded(int ppn) {
+		resident[ppn] = true;
+		// the faulting access counts as the first reference
+		age[ppn] = referenced;
+	}
+
+	public void pageEvicted(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public void pageFreed(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public void updateReferences() {
+		for (int ppn = 0; ppn < resident.length; ppn++) {
+			if (resident[ppn])
+				age[ppn] = (age[ppn] >>> 1)
+						| (VMKernel.clearUsedBits(ppn) ? referenced : 0);
+		}
+	}
+
+	public int chooseVictim() {
+		int victim = -1;
+
+		for (int ppn = 0; ppn < resident.length; ppn++) {
+			if (resident[ppn] && VMKernel.isEvictable(ppn)
+					&& (victim == -1 || age[ppn] < age[victim]))
+				victim = ppn;
+		}
+
+		return victim;
+	}
+
+	private static final int referenced = 0x40000000;
+
+	private boolean[] resident;
+
+	/** The aging counter of each frame; the sign bit is never set. */
+	private int[] age;
+}
@@ -0,0 +1,52 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * The clock (second chance) algorithm: a hand sweeps the frames in order,
+ * clearing the used bits of referenced frames and evicting the first frame
+ * found unreferenced.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		resident = new boolean[Machine.processor().getNumPhysPages()];
+	}
+
+	public void pageLoaded(int ppn) {
+		resident[ppn] = true;
+	}
+
+	public void pageEvicted(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public void pageFreed(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public void updateReferences() {
+	}
+
+	public int chooseVictim() {
+		// the second pass finds every frame the first pass cleared
+		for (int i = 0; i < 2 * resident.length; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % resident.length;
+
+			if (resident[ppn] && VMKernel.isEvictable(ppn)
+					&& !VMKernel.clearUsedBits(ppn))
+				return ppn;
+		}
+
+		return -1;
+	}
+
+	/** The frame the hand examines next. */
+	private int hand = 0;
+
+	private boolean[] resident;
+}
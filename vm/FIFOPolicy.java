@@ -0,0 +1,39 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * First-in first-out replacement: evicts the page that has been resident the
+ * longest, regardless of how recently it was used.
+ */
+public class FIFOPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new FIFO policy.
+	 */
+	public FIFOPolicy() {
+		queue = new FrameQueue(Machine.processor().getNumPhysPages());
+	}
+
+	public void pageLoaded(int ppn) {
+		queue.addLast(ppn);
+	}
+
+	public void pageEvicted(int ppn) {
+		queue.remove(ppn);
+	}
+
+	public void pageFreed(int ppn) {
+		queue.remove(ppn);
+	}
+
+	public void updateReferences() {
+	}
+
+	public int chooseVictim() {
+		return queue.firstEvictable();
+	}
+
+	/** Resident frames, oldest first. */
+	private FrameQueue queue;
+}
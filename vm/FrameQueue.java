@@ -0,0 +1,129 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * An ordered queue of physical frames, used by replacement policies to keep
+ * frames in load or recency order. Each frame is in the queue at most once.
+ * The queue is threaded through per-frame link arrays, so adding, removing
+ * and moving a frame all take constant time.
+ */
+public class FrameQueue {
+	/**
+	 * Allocate a new, empty queue able to hold the specified number of
+	 * frames.
+	 *
+	 * @param numFrames the number of physical frames.
+	 */
+	public FrameQueue(int numFrames) {
+		next = new int[numFrames];
+		prev = new int[numFrames];
+		member = new boolean[numFrames];
+	}
+
+	/**
+	 * Add a frame at the tail of the queue.
+	 *
+	 * @param ppn a physical page number not already in the queue.
+	 */
+	public void addLast(int ppn) {
+		Lib.assertTrue(!member[ppn]);
+
+		member[ppn] = true;
+		next[ppn] = -1;
+		prev[ppn] = tail;
+		if (tail != -1)
+			next[tail] = ppn;
+		else
+			head = ppn;
+		tail = ppn;
+		size++;
+	}
+
+	/**
+	 * Remove a frame from the queue if it is in it.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the frame was in the queue.
+	 */
+	public boolean remove(int ppn) {
+		if (!member[ppn])
+			return false;
+
+		if (prev[ppn] != -1)
+			next[prev[ppn]] = next[ppn];
+		else
+			head = next[ppn];
+
+		if (next[ppn] != -1)
+			prev[next[ppn]] = prev[ppn];
+		else
+			tail = prev[ppn];
+
+		member[ppn] = false;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Move a frame in the queue to its tail.
+	 *
+	 * @param ppn a physical page number in the queue.
+	 */
+	public void moveToLast(int ppn) {
+		remove(ppn);
+		addLast(ppn);
+	}
+
+	/**
+	 * Test whether a frame is in the queue.
+	 */
+	public boolean contains(int ppn) {
+		return member[ppn];
+	}
+
+	/**
+	 * Return the frame at the head of the queue, or -1 if it is empty.
+	 */
+	public int first() {
+		return head;
+	}
+
+	/**
+	 * Return the frame following the specified frame, or -1 if it is the
+	 * tail.
+	 */
+	public int next(int ppn) {
+		Lib.assertTrue(member[ppn]);
+		return next[ppn];
+	}
+
+	/**
+	 * Return the first frame, from the head, that may be evicted.
+	 *
+	 * @return the physical page number, or -1 if no frame in the queue may
+	 * be evicted.
+	 */
+	public int firstEvictable() {
+		for (int ppn = head; ppn != -1; ppn = next[ppn]) {
+			if (VMKernel.isEvictable(ppn))
+				return ppn;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Return the number of frames in the queue.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private int head = -1, tail = -1;
+	private int size = 0;
+
+	private int[] next, prev;
+	private boolean[] member;
+}
@@ -0,0 +1,58 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * Chooses which resident page <tt>VMKernel</tt> evicts when memory is full.
+ * The kernel picks the policy named by the <tt>VMKernel.replacementPolicy</tt>
+ * key when it starts, and tells it whenever a frame is filled, evicted or
+ * freed. Whether the chosen page must first be written to swap is up to the
+ * kernel.
+ *
+ * <p>
+ * A policy learns about references through <tt>VMKernel.clearUsedBits()</tt>,
+ * which reports and clears the used bits the processor set in the TLB and the
+ * page tables, and asks <tt>VMKernel.isEvictable()</tt> whether a frame may be
+ * taken right now. Every method is called with the page table lock held.
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * Called when a frame has been filled with a page that may later be
+	 * evicted.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void pageLoaded(int ppn);
+
+	/**
+	 * Called just before the page in a frame is evicted, while the frame
+	 * still records which page it holds.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void pageEvicted(int ppn);
+
+	/**
+	 * Called when a frame is freed because the processes using its page are
+	 * gone. The frame may never have been passed to <tt>pageLoaded()</tt>.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void pageFreed(int ppn);
+
+	/**
+	 * Called once at the start of every eviction, after the references
+	 * recorded in the TLB have been merged into the page tables.
+	 */
+	public void updateReferences();
+
+	/**
+	 * Choose the frame to evict. The kernel may call this several times in
+	 * one eviction, if the frames chosen first turn out to be dirty.
+	 *
+	 * @return the physical page number of a frame for which
+	 * <tt>VMKernel.isEvictable()</tt> is true, or -1 if there is none.
+	 */
+	public int chooseVictim();
+}
@@ -0,0 +1,243 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+
+/**
+ * A sparse two-level page table. Virtual page numbers are split into a
+ * directory index and an index into a second-level table of
+ * <tt>tableSize</tt> entries; second-level tables are only allocated once a
+ * page they cover is mapped, and the directory only grows as far as the
+ * highest mapped page.
+ *
+ * <p>
+ * Each entry is packed into a single <tt>int</tt>: the low <tt>flagBits</tt>
+ * bits hold the flags below, and the remaining bits hold a frame number while
+ * the page is <tt>valid</tt>, or a swap slot while it is <tt>swapped</tt>.
+ * Entries are only expanded into a <tt>TranslationEntry</tt> when they are
+ * loaded into the TLB. An entry of 0 means the page is not part of the
+ * address space.
+ */
+public class PageTable {
+	/**
+	 * Allocate a new, empty page table.
+	 */
+	public PageTable() {
+	}
+
+	/**
+	 * Return the packed entry of the specified page.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the entry, or 0 if the page is not mapped.
+	 */
+	public int get(int vpn) {
+		int dir = vpn >>> tableBits;
+		if (dir >= directory.length || directory[dir] == null)
+			return 0;
+
+		return directory[dir][vpn & tableMask];
+	}
+
+	/**
+	 * Set the packed entry of the specified page, allocating a second-level
+	 * table for it if needed.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param entry the new entry, or 0 to unmap the page.
+	 */
+	public void set(int vpn, int entry) {
+		Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+
+		int dir = vpn >>> tableBits;
+		if (dir >= directory.length) {
+			if (entry == 0)
+				return;
+			directory = Arrays.copyOf(directory, dir + 1);
+		}
+
+		if (directory[dir] == null) {
+			if (entry == 0)
+				return;
+			directory[dir] = new int[tableSize];
+			numTables++;
+		}
+
+		directory[dir][vpn & tableMask] = entry;
+	}
+
+	/**
+	 * Set the specified flags in the entry of a mapped page.
+	 */
+	public void setFlags(int vpn, int flags) {
+		int entry = get(vpn);
+		Lib.assertTrue(entry != 0);
+
+		directory[vpn >>> tableBits][vpn & tableMask] = entry | flags;
+	}
+
+	/**
+	 * Clear the specified flags in the entry of a mapped page.
+	 */
+	public void clearFlags(int vpn, int flags) {
+		int entry = get(vpn);
+		Lib.assertTrue(entry != 0);
+
+		directory[vpn >>> tableBits][vpn & tableMask] = entry & ~flags;
+	}
+
+	/**
+	 * Return a translation for the specified resident page, suitable for
+	 * loading into the TLB.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return a new translation entry.
+	 */
+	public TranslationEntry getTranslationEntry(int vpn) {
+		TranslationEntry translation = new TranslationEntry();
+		fillTranslationEntry(vpn, translation);
+
+		return translation;
+	}
+
+	/**
+	 * Fill in a translation for the specified resident page without
+	 * allocating one, for paths as frequent as a context switch.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param translation the entry to overwrite.
+	 */
+	public void fillTranslationEntry(int vpn, TranslationEntry translation) {
+		int entry = get(vpn);
+		Lib.assertTrue((entry & valid) != 0);
+
+		translation.vpn = vpn;
+		translation.ppn = getNumber(entry);
+		translation.valid = true;
+		translation.readOnly = (entry & (readOnly | zeroFill | merged)) != 0;
+		translation.used = (entry & used) != 0;
+		translation.dirty = (entry & dirty) != 0;
+	}
+
+	/**
+	 * Merge the used and dirty bits the processor set in a TLB entry back
+	 * into this page table.
+	 *
+	 * @param translation a valid TLB entry of this address space.
+	 */
+	public void updateFromTLB(TranslationEntry translation) {
+		int flags = (translation.used ? used | referenced : 0)
+				| (translation.dirty ? dirty : 0);
+		if (flags != 0)
+			setFlags(translation.vpn, flags);
+	}
+
+	/**
+	 * Return the lowest mapped page at or above the specified page, skipping
+	 * unallocated second-level tables.
+	 *
+	 * @param vpn the virtual page number to start from.
+	 * @return the virtual page number found, or -1 if there is none.
+	 */
+	public int nextMapped(int vpn) {
+		for (int dir = vpn >>> tableBits; dir < directory.length; dir++) {
+			if (directory[dir] == null)
+				continue;
+
+			int first = (dir == vpn >>> tableBits) ? vpn & tableMask : 0;
+			for (int i = first; i < tableSize; i++) {
+				if (directory[dir][i] != 0)
+					return (dir << tableBits) | i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Return the number of second-level tables allocated.
+	 *
+	 * @return the number of second-level tables.
+	 */
+	public int getNumTables() {
+		return numTables;
+	}
+
+	/**
+	 * Build a packed entry.
+	 *
+	 * @param number the frame number or swap slot.
+	 * @param flags the flags of the entry; must include <tt>mapped</tt>.
+	 * @return the packed entry.
+	 */
+	public static int makeEntry(int number, int flags) {
+		Lib.assertTrue((flags & mapped) != 0 && (flags & ~flagMask) == 0);
+		Lib.assertTrue(number >= 0 && number <= (-1 >>> flagBits));
+
+		return (number << flagBits) | flags;
+	}
+
+	/**
+	 * Return the frame number or swap slot of a packed entry.
+	 *
+	 * @param entry the packed entry.
+	 * @return the frame number or swap slot.
+	 */
+	public static int getNumber(int entry) {
+		return entry >>> flagBits;
+	}
+
+	/** Set in every entry of a page that is part of the address space. */
+	public static final int mapped = 0x01;
+	/** The page is resident; the entry holds its frame number. */
+	public static final int valid = 0x02;
+	/** The page may not be written by the user. */
+	public static final int readOnly = 0x04;
+	/** The page has been referenced since its used bit was last cleared. */
+	public static final int used = 0x08;
+	/** The resident page differs from its copy on the COFF file or swap. */
+	public static final int dirty = 0x10;
+	/** The page is not resident; the entry holds its swap slot. */
+	public static final int swapped = 0x20;
+	/**
+	 * The page has been referenced since the working-set sampler last looked
+	 * at it. Set together with <tt>used</tt>, but cleared independently, so
+	 * sampling does not hide references from the replacement policy.
+	 */
+	public static final int referenced = 0x40;
+	/**
+	 * The page was read in ahead of any reference to it, and has not been
+	 * referenced since.
+	 */
+	public static final int prefetched = 0x80;
+	/**
+	 * The page has never been written, and maps the shared zero frame. It is
+	 * loaded into the TLB read-only, so that the first write can give it a
+	 * frame of its own.
+	 */
+	public static final int zeroFill = 0x100;
+	/**
+	 * The page is being read into a frame that is not yet mapped; the entry
+	 * holds the frame number, so that other threads faulting on the page can
+	 * wait for the read instead of starting another.
+	 */
+	public static final int inFlight = 0x200;
+	/**
+	 * The page maps a frame merged with identical pages of other processes.
+	 * Like a zero page, it is loaded into the TLB read-only, so that the
+	 * first write gives it a copy of its own.
+	 */
+	public static final int merged = 0x400;
+
+	private static final int flagBits = 11;
+	private static final int flagMask = (1 << flagBits) - 1;
+
+	private static final int tableBits = 6;
+	private static final int tableSize = 1 << tableBits;
+	private static final int tableMask = tableSize - 1;
+
+	private int[][] directory = new int[1][];
+	private int numTables = 0;
+}
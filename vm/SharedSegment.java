@@ -0,0 +1,98 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A shared-memory segment created by the <tt>shmget()</tt> syscall. A segment
+ * owns a fixed set of physical pages that are mapped into the page table of
+ * every process that attaches to it.
+ *
+ * <p>
+ * The physical pages of a segment are pinned in the inverted page table for as
+ * long as the segment exists, so they are never chosen as replacement victims
+ * and never written to swap.
+ */
+public class SharedSegment {
+	/**
+	 * Allocate a new shared segment backed by the specified physical pages.
+	 *
+	 * @param key the key the segment was created with.
+	 * @param creatorID the process ID of the process that created it.
+	 * @param ppns the physical pages backing the segment.
+	 */
+	public SharedSegment(int key, int creatorID, int[] ppns) {
+		this.key = key;
+		this.creatorID = creatorID;
+		this.ppns = ppns;
+	}
+
+	/**
+	 * Get the key this segment was created with.
+	 *
+	 * @return the key of this segment.
+	 */
+	public int getKey() {
+		return key;
+	}
+
+	/**
+	 * Get the process ID of the process that created this segment.
+	 *
+	 * @return the process ID of the creator.
+	 */
+	public int getCreatorID() {
+		return creatorID;
+	}
+
+	/**
+	 * Get the length of this segment in pages.
+	 *
+	 * @return the number of pages in this segment.
+	 */
+	public int getLength() {
+		return ppns.length;
+	}
+
+	/**
+	 * Get the physical page backing the specified page of this segment.
+	 *
+	 * @param spn the page number within this segment.
+	 * @return the physical page number.
+	 */
+	public int getPPN(int spn) {
+		return ppns[spn];
+	}
+
+	/**
+	 * Get the number of processes currently attached to this segment.
+	 *
+	 * @return the attach count.
+	 */
+	public int getAttachCount() {
+		return attachCount;
+	}
+
+	/**
+	 * Record that a process has attached to this segment.
+	 */
+	public void attach() {
+		attachCount++;
+	}
+
+	/**
+	 * Record that a process has detached from this segment.
+	 *
+	 * @return the number of processes still attached.
+	 */
+	public int detach() {
+		Lib.assertTrue(attachCount > 0);
+		return --attachCount;
+	}
+
+	private int key;
+	private int creatorID;
+	private int[] ppns;
+	private int attachCount = 0;
+}
@@ -0,0 +1,198 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+
+/**
+ * Allocates page-sized slots in the swap file. Slots are tracked in a bitmap
+ * that grows with the file, together with a hint below which every slot is
+ * known to be in use, so the lowest free slot is found by scanning a few
+ * words at most and the file stays as dense as possible. The file may be
+ * given a capacity, past which no slot is handed out.
+ *
+ * <p>
+ * The allocator does not know which page a slot holds; that is recorded in
+ * the page table of the process that owns the page.
+ */
+public class SwapAllocator {
+	/**
+	 * Allocate a new swap allocator in which no slot is in use.
+	 *
+	 * @param capacity the most slots the swap file may hold, or 0 for no
+	 * limit.
+	 */
+	public SwapAllocator(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		this.capacity = capacity;
+		lock = new Lock();
+	}
+
+	/**
+	 * Allocate the lowest free slot, extending the swap file by one slot if
+	 * none is free.
+	 *
+	 * @return the slot number, or -1 if the swap file is full.
+	 */
+	public int allocate() {
+		lock.acquire();
+
+		int slot = numSlots;
+		for (int word = hint >> 6; word < (numSlots + 63) >> 6; word++) {
+			if (used[word] != -1L) {
+				slot = Math.min(numSlots, (word << 6)
+						+ Long.numberOfTrailingZeros(~used[word]));
+				break;
+			}
+		}
+
+		if (slot == numSlots) {
+			if (capacity > 0 && numSlots == capacity) {
+				lock.release();
+				return -1;
+			}
+
+			numSlots++;
+			if ((numSlots + 63) >> 6 > used.length)
+				used = Arrays.copyOf(used, used.length * 2);
+		}
+
+		used[slot >> 6] |= 1L << (slot & 63);
+		numUsed++;
+		hint = slot + 1;
+
+		lock.release();
+		return slot;
+	}
+
+	/**
+	 * Allocate a run of consecutive slots, the lowest that is free, extending
+	 * the swap file if no run that long is free inside it.
+	 *
+	 * @param count the number of slots.
+	 * @return the first slot of the run, or -1 if the swap file cannot hold
+	 * a free run that long.
+	 */
+	public int allocateContiguous(int count) {
+		Lib.assertTrue(count > 0);
+
+		lock.acquire();
+
+		// slots past the end of the file are all free
+		int first = hint;
+		for (int slot = hint; slot < numSlots && slot < first + count; slot++) {
+			if (isAllocated(slot))
+				first = slot + 1;
+		}
+
+		if (capacity > 0 && first + count > capacity) {
+			lock.release();
+			return -1;
+		}
+
+		if (first + count > numSlots) {
+			numSlots = first + count;
+			int words = used.length;
+			while ((numSlots + 63) >> 6 > words)
+				words *= 2;
+			used = Arrays.copyOf(used, words);
+		}
+
+		for (int slot = first; slot < first + count; slot++)
+			used[slot >> 6] |= 1L << (slot & 63);
+		numUsed += count;
+		if (first == hint)
+			hint = first + count;
+
+		lock.release();
+		return first;
+	}
+
+	/**
+	 * Free a slot.
+	 *
+	 * @param slot a slot returned by <tt>allocate()</tt>.
+	 */
+	public void free(int slot) {
+		lock.acquire();
+
+		Lib.assertTrue(isAllocated(slot), "swap slot freed twice");
+		used[slot >> 6] &= ~(1L << (slot & 63));
+		numUsed--;
+		if (slot < hint)
+			hint = slot;
+
+		lock.release();
+	}
+
+	/**
+	 * Test whether the specified slot is in use.
+	 *
+	 * @param slot the slot number.
+	 * @return <tt>true</tt> if the slot is in use.
+	 */
+	public boolean isAllocated(int slot) {
+		return slot >= 0 && slot < numSlots
+				&& (used[slot >> 6] & (1L << (slot & 63))) != 0;
+	}
+
+	/**
+	 * Shrink the swap file to end after the last slot in use.
+	 *
+	 * @return the new size of the swap file in slots.
+	 */
+	public int trim() {
+		lock.acquire();
+
+		while (numSlots > 0 && !isAllocated(numSlots - 1))
+			numSlots--;
+		hint = Math.min(hint, numSlots);
+
+		lock.release();
+		return numSlots;
+	}
+
+	/**
+	 * Test whether every slot the swap file may hold is in use.
+	 *
+	 * @return <tt>true</tt> if no slot can be allocated.
+	 */
+	public boolean isFull() {
+		return capacity > 0 && numUsed == capacity;
+	}
+
+	/**
+	 * Return the number of slots in use.
+	 *
+	 * @return the number of slots in use.
+	 */
+	public int getNumUsed() {
+		return numUsed;
+	}
+
+	/**
+	 * Return the number of slots the swap file extends over, used or not.
+	 *
+	 * @return the size of the swap file in slots.
+	 */
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	/** One bit per slot, set while the slot is in use. */
+	private long[] used = new long[1];
+
+	/** Every slot below the hint is in use. */
+	private int hint = 0;
+
+	/** The most slots the swap file may hold, or 0 for no limit. */
+	private int capacity;
+
+	private int numSlots = 0;
+	private int numUsed = 0;
+
+	private Lock lock;
+}
@@ -0,0 +1,287 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.vm.*;
+
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * A compressed in-memory tier in front of the swap file. Pages written to a
+ * swap slot are deflated and kept in a pool of at most <tt>maxBytes</tt>
+ * bytes, so that a fault on them costs no file I/O. When the pool is full,
+ * the pages read or stored longest ago are written to their slots in the
+ * swap file.
+ * Pages that do not compress well enough to be worth keeping go straight to
+ * the file.
+ *
+ * <p>
+ * A slot is either in the pool or in the file, never both, so the page
+ * tables need not know which; they keep recording only the slot.
+ *
+ * <p>
+ * The cache's lock is never held during file I/O, so a fault looking up a
+ * slot does not wait for another thread's write. Pages being spilled stay
+ * readable from memory until they are in the file.
+ */
+public class SwapCache {
+	/**
+	 * Allocate a new, empty swap cache.
+	 *
+	 * @param maxBytes the most compressed bytes to keep, or 0 to write every
+	 * page to the swap file.
+	 */
+	public SwapCache(int maxBytes) {
+		this.maxBytes = maxBytes;
+
+		lock = new Lock();
+		spillDone = new Condition2(lock);
+		deflater = new Deflater(Deflater.BEST_SPEED);
+		inflater = new Inflater();
+	}
+
+	/**
+	 * Store a run of pages written to consecutive swap slots. Pages that do
+	 * not fit in the pool are written to the swap file, each run of
+	 * neighbouring slots in one request.
+	 *
+	 * @param firstSlot the slot of the first page.
+	 * @param data the pages, one after another.
+	 * @param count the number of pages.
+	 */
+	public void write(int firstSlot, byte[] data, int count) {
+		lock.acquire();
+
+		// a slot freed while it was being spilled may have been reused
+		for (int i = 0; i < count; i++) {
+			while (spilling.containsKey(new Integer(firstSlot + i)))
+				spillDone.sleep();
+		}
+
+		boolean[] stored = new boolean[count];
+		for (int i = 0; i < count && maxBytes > 0; i++) {
+			byte[] compressed = compress(data, i * pageSize);
+			if (compressed != null) {
+				pool.put(new Integer(firstSlot + i), compressed);
+				numBytes += compressed.length;
+				stored[i] = true;
+
+				Machine.stats().numSwapCachePagesStored++;
+				Machine.stats().numSwapCacheBytesStored += compressed.length;
+			}
+		}
+
+		ArrayList<Spill> spills = new ArrayList<Spill>();
+		while (numBytes > maxBytes)
+			spills.add(takeColdest());
+
+		lock.release();
+
+		for (int i = 0; i < count; i++) {
+			if (stored[i])
+				continue;
+
+			int runLength = 1;
+			while (i + runLength < count && !stored[i + runLength])
+				runLength++;
+
+			writeToFile(firstSlot + i, data, i * pageSize, runLength);
+			i += runLength - 1;
+		}
+
+		if (spills.isEmpty())
+			return;
+
+		for (Spill spill : spills) {
+			writeToFile(spill.firstSlot, spill.data, 0, spill.count);
+			Machine.stats().numSwapCachePagesSpilled += spill.count;
+		}
+
+		lock.acquire();
+
+		for (Spill spill : spills) {
+			for (int i = 0; i < spill.count; i++)
+				spilling.remove(new Integer(spill.firstSlot + i));
+		}
+		spillDone.wakeAll();
+
+		lock.release();
+	}
+
+	/**
+	 * Read the page in the specified slot if it is in the pool.
+	 *
+	 * @param slot the swap slot.
+	 * @param memory the array to read the page into.
+	 * @param offset the offset in <i>memory</i> of the first byte.
+	 * @return <tt>true</tt> if the page was in the pool, or <tt>false</tt> if
+	 * it must be read from the swap file.
+	 */
+	public boolean read(int slot, byte[] memory, int offset) {
+		lock.acquire();
+
+		Integer key = new Integer(slot);
+		byte[] compressed = pool.get(key);
+		if (compressed == null)
+			compressed = spilling.get(key);
+		if (compressed == null) {
+			lock.release();
+			return false;
+		}
+
+		decompress(compressed, memory, offset);
+
+		lock.release();
+		return true;
+	}
+
+	/**
+	 * Test whether the page in the specified slot is in the pool.
+	 *
+	 * @param slot the swap slot.
+	 * @return <tt>true</tt> if the page is in the pool.
+	 */
+	public boolean contains(int slot) {
+		lock.acquire();
+		Integer key = new Integer(slot);
+		boolean result = pool.containsKey(key) || spilling.containsKey(key);
+		lock.release();
+
+		return result;
+	}
+
+	/**
+	 * Forget the page in the specified slot, because the slot is being
+	 * freed.
+	 *
+	 * @param slot the swap slot.
+	 */
+	public void free(int slot) {
+		lock.acquire();
+
+		byte[] compressed = pool.remove(new Integer(slot));
+		if (compressed != null)
+			numBytes -= compressed.length;
+
+		lock.release();
+	}
+
+	/**
+	 * Deflate a page.
+	 *
+	 * @return the compressed page, or <tt>null</tt> if it would take more
+	 * than <tt>maxCompressedSize</tt> bytes.
+	 */
+	private byte[] compress(byte[] data, int offset) {
+		deflater.reset();
+		deflater.setInput(data, offset, pageSize);
+		deflater.finish();
+
+		int length = deflater.deflate(buffer, 0, maxCompressedSize + 1);
+		if (!deflater.finished() || length > maxCompressedSize)
+			return null;
+
+		return Arrays.copyOf(buffer, length);
+	}
+
+	/**
+	 * Inflate a page stored by <tt>compress()</tt>.
+	 */
+	private void decompress(byte[] compressed, byte[] data, int offset) {
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			Lib.assertTrue(inflater.inflate(data, offset, pageSize) == pageSize);
+		}
+		catch (DataFormatException e) {
+			Lib.assertNotReached("corrupt page in swap cache");
+		}
+	}
+
+	/**
+	 * Take the page read or stored longest ago out of the pool, together with
+	 * the pages in the pool that belong to the slots after it, for the
+	 * caller to write to the swap file once it has released the lock. The
+	 * pages move to <tt>spilling</tt> until then. The caller must hold
+	 * <tt>lock</tt>.
+	 */
+	private Spill takeColdest() {
+		int firstSlot = pool.keySet().iterator().next().intValue();
+
+		int count = 1;
+		while (count < maxSpillPages
+				&& pool.containsKey(new Integer(firstSlot + count)))
+			count++;
+
+		Spill spill = new Spill(firstSlot, count);
+		for (int i = 0; i < count; i++) {
+			Integer key = new Integer(firstSlot + i);
+			byte[] compressed = pool.remove(key);
+			numBytes -= compressed.length;
+			spilling.put(key, compressed);
+			decompress(compressed, spill.data, i * pageSize);
+		}
+
+		return spill;
+	}
+
+	private void writeToFile(int firstSlot, byte[] data, int offset, int count) {
+		VMKernel.swapSpace.write(firstSlot, data, offset, count);
+		Machine.stats().numSwapWrites++;
+		Machine.stats().numSwapPagesWritten += count;
+	}
+
+	/** The most compressed bytes kept in the pool. */
+	private int maxBytes;
+
+	/** The bytes currently kept in the pool. */
+	private int numBytes = 0;
+
+	/**
+	 * The compressed pages, indexed by slot, in the order they were last read
+	 * or stored.
+	 */
+	private LinkedHashMap<Integer, byte[]> pool = new LinkedHashMap<Integer, byte[]>(
+			16, 0.75f, true);
+
+	/**
+	 * The compressed pages taken from the pool and not yet in the swap file,
+	 * indexed by slot.
+	 */
+	private HashMap<Integer, byte[]> spilling = new HashMap<Integer, byte[]>();
+
+	private Deflater deflater;
+	private Inflater inflater;
+
+	private static final int pageSize = Processor.pageSize;
+
+	/**
+	 * Pages that compress to more than three quarters of their size are not
+	 * worth the pool space.
+	 */
+	private static final int maxCompressedSize = pageSize * 3 / 4;
+
+	/** The most pages written to the swap file in one spill. */
+	private static final int maxSpillPages = 4;
+
+	private byte[] buffer = new byte[maxCompressedSize + 1];
+
+	private Lock lock;
+
+	/** Signalled whenever a spill is in the swap file. */
+	private Condition2 spillDone;
+
+	/** A run of pages taken from the pool to be written to the swap file. */
+	private static class Spill {
+		Spill(int firstSlot, int count) {
+			this.firstSlot = firstSlot;
+			this.count = count;
+			data = new byte[count * pageSize];
+		}
+
+		int firstSlot, count;
+
+		byte[] data;
+	}
+}
@@ -0,0 +1,182 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.vm.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A swap device holding page-sized slots in direct buffers outside the Java
+ * heap, added in chunks of <tt>chunkPages</tt> slots as the device grows.
+ * A transfer moves any number of consecutive slots, and costs the same
+ * simulated time as a request to the stub file system, so the swap
+ * statistics still reflect a disk while the host does no file I/O. The
+ * device serves one transfer at a time; <tt>schedule()</tt> queues one
+ * behind those already in progress and tells when it will be done.
+ *
+ * <p>
+ * A slot never written reads as zeros.
+ */
+public class SwapDevice {
+	/**
+	 * Allocate a new, empty swap device.
+	 *
+	 * @param chunkPages the number of slots to add each time the device
+	 * grows.
+	 * @param accessTime the simulated ticks each transfer takes.
+	 */
+	public SwapDevice(int chunkPages, int accessTime) {
+		Lib.assertTrue(chunkPages > 0 && accessTime >= 0);
+
+		this.chunkPages = chunkPages;
+		this.accessTime = accessTime;
+	}
+
+	/**
+	 * Queue a transfer behind those already in progress. The caller waits
+	 * until the returned time, then moves the data with <tt>read()</tt> or
+	 * <tt>write()</tt> and calls <tt>finish()</tt>.
+	 *
+	 * @return the time at which the transfer is done.
+	 */
+	public long schedule() {
+		long start = Math.max(Machine.timer().getTime(), busyUntil);
+		busyUntil = start + accessTime;
+
+		queueDepth++;
+		numTransfers++;
+		busyTicks += accessTime;
+		totalQueueDepth += queueDepth;
+		maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+
+		return busyUntil;
+	}
+
+	/**
+	 * Note that a transfer queued by <tt>schedule()</tt> is done.
+	 */
+	public void finish() {
+		queueDepth--;
+	}
+
+	/**
+	 * Read a run of consecutive slots.
+	 *
+	 * @param firstSlot the first slot to read.
+	 * @param data the array to read the pages into, one after another.
+	 * @param offset the offset in <i>data</i> of the first byte.
+	 * @param count the number of slots.
+	 */
+	public void read(int firstSlot, byte[] data, int offset, int count) {
+		for (int i = 0; i < count; i++) {
+			int slot = firstSlot + i;
+			if (slot / chunkPages < chunks.size())
+				getSlot(slot).get(data, offset + i * pageSize, pageSize);
+			else
+				Arrays.fill(data, offset + i * pageSize, offset + (i + 1)
+						* pageSize, (byte) 0);
+		}
+	}
+
+	/**
+	 * Write a run of consecutive slots, growing the device to hold them.
+	 *
+	 * @param firstSlot the first slot to write.
+	 * @param data the pages, one after another.
+	 * @param offset the offset in <i>data</i> of the first byte.
+	 * @param count the number of slots.
+	 */
+	public void write(int firstSlot, byte[] data, int offset, int count) {
+		while ((firstSlot + count + chunkPages - 1) / chunkPages > chunks.size())
+			chunks.add(ByteBuffer.allocateDirect(chunkPages * pageSize));
+
+		for (int i = 0; i < count; i++)
+			getSlot(firstSlot + i).put(data, offset + i * pageSize, pageSize);
+	}
+
+	/**
+	 * Return the number of slots the device can hold without growing.
+	 *
+	 * @return the number of slots.
+	 */
+	public int getNumSlots() {
+		return chunks.size() * chunkPages;
+	}
+
+	/**
+	 * Discard every slot from the specified one on, giving the chunks no
+	 * longer needed back to the host.
+	 *
+	 * @param numSlots the number of slots to keep.
+	 */
+	public void truncate(int numSlots) {
+		int numChunks = (numSlots + chunkPages - 1) / chunkPages;
+		while (chunks.size() > numChunks)
+			chunks.remove(chunks.size() - 1);
+
+		// the discarded slots of the last chunk must read as zeros again
+		if (numSlots < getNumSlots()) {
+			ByteBuffer buffer = getSlot(numSlots);
+			while (buffer.hasRemaining())
+				buffer.put((byte) 0);
+		}
+	}
+
+	/** Return the number of transfers queued on this device. */
+	public int getNumTransfers() {
+		return numTransfers;
+	}
+
+	/** Return the ticks this device has spent transferring. */
+	public long getBusyTicks() {
+		return busyTicks;
+	}
+
+	/**
+	 * Return the sum, over every transfer, of the transfers queued on this
+	 * device when it was, itself included.
+	 */
+	public long getTotalQueueDepth() {
+		return totalQueueDepth;
+	}
+
+	/** Return the most transfers queued on this device at once. */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	/**
+	 * Return a view of a slot, positioned at its first byte.
+	 */
+	private ByteBuffer getSlot(int slot) {
+		ByteBuffer buffer = chunks.get(slot / chunkPages).duplicate();
+		buffer.position((slot % chunkPages) * pageSize);
+
+		return buffer;
+	}
+
+	/** The number of slots in each chunk. */
+	private int chunkPages;
+
+	/** The simulated ticks each transfer takes. */
+	private int accessTime;
+
+	/** The time at which the last transfer queued is done. */
+	private long busyUntil = 0;
+
+	/** The transfers queued and not yet finished. */
+	private int queueDepth = 0;
+
+	private int numTransfers = 0;
+	private long busyTicks = 0;
+	private long totalQueueDepth = 0;
+	private int maxQueueDepth = 0;
+
+	/** The chunks, in slot order. */
+	private ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,248 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.vm.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * The swap slots, spread over one or more swap devices. Devices are grouped
+ * by priority, and each group takes a range of slots, the group with the
+ * highest priority first; since <tt>SwapAllocator</tt> hands out the lowest
+ * free slot, a group is only used once those before it are full. Within a
+ * group, consecutive slots go to the devices in turn, so that a run of
+ * slots is transferred by all of them at once.
+ *
+ * <p>
+ * The devices of a group are used equally, so a group holds as many slots
+ * on each device as its smallest device has. A group with no limit on any
+ * device has no limit, and any group after it is never used.
+ */
+public class SwapSpace {
+	/**
+	 * Allocate swap space on the devices declared by
+	 * <tt>VMKernel.numSwapDevices</tt>, each with a
+	 * <tt>VMKernel.swapDevice</tt><i>n</i><tt>.priority</tt>, a
+	 * <tt>.pages</tt> limit (0 for none), and an <tt>.accessTime</tt>.
+	 *
+	 * @param chunkPages the number of slots each device grows by.
+	 * @param accessTime the simulated ticks a transfer takes on a device
+	 * that does not declare its own.
+	 */
+	public SwapSpace(int chunkPages, int accessTime) {
+		int numDevices = Config.getInteger("VMKernel.numSwapDevices", 1);
+		Lib.assertTrue(numDevices > 0);
+
+		devices = new SwapDevice[numDevices];
+		priorities = new int[numDevices];
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < numDevices; i++) {
+			String prefix = "VMKernel.swapDevice" + i + ".";
+			devices[i] = new SwapDevice(chunkPages, Config.getInteger(prefix
+					+ "accessTime", accessTime));
+			priorities[i] = Config.getInteger(prefix + "priority", 0);
+			order.add(new Integer(i));
+		}
+
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				return priorities[j.intValue()] - priorities[i.intValue()];
+			}
+		});
+
+		// split the devices into groups of equal priority
+		ArrayList<int[]> groupList = new ArrayList<int[]>();
+		for (int first = 0; first < numDevices;) {
+			int last = first + 1;
+			while (last < numDevices
+					&& priorities[order.get(last).intValue()] == priorities[order
+							.get(first).intValue()])
+				last++;
+
+			int[] group = new int[last - first];
+			for (int i = 0; i < group.length; i++)
+				group[i] = order.get(first + i).intValue();
+			groupList.add(group);
+
+			first = last;
+		}
+
+		groups = groupList.toArray(new int[0][]);
+		groupSlots = new int[groups.length];
+		for (int g = 0; g < groups.length; g++) {
+			int devicePages = 0;
+			for (int i = 0; i < groups[g].length; i++) {
+				int pages = Config.getInteger("VMKernel.swapDevice"
+						+ groups[g][i] + ".pages", 0);
+				if (pages > 0 && (devicePages == 0 || pages < devicePages))
+					devicePages = pages;
+			}
+			groupSlots[g] = devicePages * groups[g].length;
+		}
+	}
+
+	/**
+	 * Read a run of consecutive slots, waiting for every device holding one
+	 * of them.
+	 *
+	 * @param firstSlot the first slot to read.
+	 * @param data the array to read the pages into, one after another.
+	 * @param offset the offset in <i>data</i> of the first byte.
+	 * @param count the number of slots.
+	 */
+	public void read(int firstSlot, byte[] data, int offset, int count) {
+		boolean[] used = transfer(firstSlot, count);
+
+		for (int i = 0; i < count; i++) {
+			long location = locate(firstSlot + i);
+			devices[(int) (location >> 32)].read((int) location, data, offset
+					+ i * pageSize, 1);
+		}
+
+		finish(used);
+	}
+
+	/**
+	 * Write a run of consecutive slots, waiting for every device holding one
+	 * of them.
+	 *
+	 * @param firstSlot the first slot to write.
+	 * @param data the pages, one after another.
+	 * @param offset the offset in <i>data</i> of the first byte.
+	 * @param count the number of slots.
+	 */
+	public void write(int firstSlot, byte[] data, int offset, int count) {
+		boolean[] used = transfer(firstSlot, count);
+
+		for (int i = 0; i < count; i++) {
+			long location = locate(firstSlot + i);
+			devices[(int) (location >> 32)].write((int) location, data, offset
+					+ i * pageSize, 1);
+		}
+
+		finish(used);
+	}
+
+	/**
+	 * Discard every slot from the specified one on.
+	 *
+	 * @param numSlots the number of slots to keep.
+	 */
+	public void truncate(int numSlots) {
+		int[] deviceSlots = new int[devices.length];
+		for (int slot = 0; slot < numSlots; slot++) {
+			long location = locate(slot);
+			int device = (int) (location >> 32);
+			deviceSlots[device] = Math.max(deviceSlots[device],
+					(int) location + 1);
+		}
+
+		for (int i = 0; i < devices.length; i++)
+			devices[i].truncate(deviceSlots[i]);
+	}
+
+	/**
+	 * Return the number of slots the devices hold together.
+	 *
+	 * @return the number of slots, or 0 if some group has no limit.
+	 */
+	public int getCapacity() {
+		int capacity = 0;
+		for (int g = 0; g < groups.length; g++) {
+			if (groupSlots[g] == 0)
+				return 0;
+
+			capacity += groupSlots[g];
+		}
+
+		return capacity;
+	}
+
+	/**
+	 * Print how busy each device has been.
+	 */
+	public void print() {
+		long ticks = Machine.timer().getTime();
+
+		for (int i = 0; i < devices.length; i++) {
+			SwapDevice device = devices[i];
+			System.out.println("Swap device " + i + ": priority "
+					+ priorities[i] + ", transfers "
+					+ device.getNumTransfers() + ", utilization "
+					+ (ticks > 0 ? device.getBusyTicks() * 100 / ticks : 0)
+					+ "%, queue depth average "
+					+ String.format("%.2f", device.getNumTransfers() > 0
+							? (double) device.getTotalQueueDepth()
+									/ device.getNumTransfers() : 0.0)
+					+ ", most " + device.getMaxQueueDepth());
+		}
+	}
+
+	/**
+	 * Queue a transfer of a run of slots on each device holding one of them,
+	 * and wait for the last to finish.
+	 *
+	 * @return which devices were used.
+	 */
+	private boolean[] transfer(int firstSlot, int count) {
+		boolean[] used = new boolean[devices.length];
+		long done = Machine.timer().getTime();
+
+		for (int i = 0; i < count; i++) {
+			int device = (int) (locate(firstSlot + i) >> 32);
+			if (!used[device]) {
+				used[device] = true;
+				done = Math.max(done, devices[device].schedule());
+			}
+		}
+
+		long wait = done - Machine.timer().getTime();
+		if (wait > 0)
+			ThreadedKernel.alarm.waitUntil(wait);
+
+		return used;
+	}
+
+	private void finish(boolean[] used) {
+		for (int i = 0; i < devices.length; i++) {
+			if (used[i])
+				devices[i].finish();
+		}
+	}
+
+	/**
+	 * Find where a slot is kept.
+	 *
+	 * @return the device in the upper 32 bits, and the slot on the device in
+	 * the lower 32 bits.
+	 */
+	private long locate(int slot) {
+		int g = 0;
+		while (groupSlots[g] != 0 && slot >= groupSlots[g]) {
+			slot -= groupSlots[g];
+			g++;
+			Lib.assertTrue(g < groups.length, "swap slot past capacity");
+		}
+
+		int[] group = groups[g];
+		return ((long) group[slot % group.length] << 32)
+				| (slot / group.length);
+	}
+
+	/** The devices, in the order they are declared. */
+	private SwapDevice[] devices;
+
+	/** The priority of each device. */
+	private int[] priorities;
+
+	/** The devices of each group, the group with the highest priority first. */
+	private int[][] groups;
+
+	/** The slots each group holds, or 0 if it holds any number. */
+	private int[] groupSlots;
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,91 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The 2Q algorithm of Johnson and Shasha. A page faulted in for the first
+ * time enters <tt>a1in</tt>, a FIFO queue holding a quarter of memory, so a
+ * page touched only once, as in a sequential scan, leaves memory quickly. The
+ * pages evicted from <tt>a1in</tt> are remembered in the ghost queue
+ * <tt>a1out</tt>; a page faulted in again while it is remembered has proven
+ * it is reused and enters <tt>am</tt>, which is kept in least recently used
+ * order.
+ */
+public class TwoQueuePolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new 2Q policy.
+	 */
+	public TwoQueuePolicy() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		a1in = new FrameQueue(numPhysPages);
+		am = new FrameQueue(numPhysPages);
+		maxA1in = Math.max(1, numPhysPages / 4);
+		maxA1out = Math.max(1, numPhysPages / 2);
+	}
+
+	public void pageLoaded(int ppn) {
+		if (a1out.remove(new Long(VMKernel.getPageKey(ppn))))
+			am.addLast(ppn);
+		else
+			a1in.addLast(ppn);
+	}
+
+	public void pageEvicted(int ppn) {
+		if (a1in.remove(ppn)) {
+			a1out.add(new Long(VMKernel.getPageKey(ppn)));
+
+			Iterator<Long> oldest = a1out.iterator();
+			while (a1out.size() > maxA1out) {
+				oldest.next();
+				oldest.remove();
+			}
+		}
+		else {
+			am.remove(ppn);
+		}
+	}
+
+	public void pageFreed(int ppn) {
+		a1in.remove(ppn);
+		am.remove(ppn);
+	}
+
+	public void updateReferences() {
+		// move referenced frames to the recent end, each at most once
+		int count = am.size();
+		int ppn = am.first();
+		for (int i = 0; i < count; i++) {
+			int next = am.next(ppn);
+			if (VMKernel.clearUsedBits(ppn))
+				am.moveToLast(ppn);
+			ppn = next;
+		}
+	}
+
+	public int chooseVictim() {
+		int victim = -1;
+
+		if (a1in.size() > maxA1in)
+			victim = a1in.firstEvictable();
+		if (victim == -1)
+			victim = am.firstEvictable();
+		if (victim == -1)
+			victim = a1in.firstEvictable();
+
+		return victim;
+	}
+
+	/** Frames holding pages faulted in once, oldest first. */
+	private FrameQueue a1in;
+	/** Frames holding pages seen again, least recently used first. */
+	private FrameQueue am;
+	/** Pages recently evicted from <tt>a1in</tt>, oldest first. */
+	private LinkedHashSet<Long> a1out = new LinkedHashSet<Long>();
+
+	private int maxA1in, maxA1out;
+}
@@ -23,15 +23,108 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+		iptLock = new Lock();
 		ipt = new PageTableEntryInfo[Machine.processor().getNumPhysPages()];
 		for(int i = 0; i < ipt.length; i++) {
 			ipt[i] = new PageTableEntryInfo();
 		}
-		freeSwapPages = new LinkedList<indexAtFreeSwapPages>();
-		iptLock = new Lock();
+
+		// the zero frame is never evicted, since it has neither owner nor image
+		zeroPage = frameAllocator.allocate();
+		Arrays.fill(Machine.processor().getMemory(), zeroPage
+				* Processor.pageSize, (zeroPage + 1) * Processor.pageSize,
+				(byte) 0);
+		ipt[zeroPage].setPinCount(1);
 		tlbLock = new Lock();
-		freeSwapPagesLock = new Lock();
-		swapFile = fileSystem.open("swapFile", true);
+		sharedSegments = new HashMap<Integer, SharedSegment>();
+		sharedSegmentsLock = new Lock();
+		processes = new HashSet<VMProcess>();
+		writeBackDone = new Condition2(iptLock);
+		writeBackQueue = new SynchList();
+
+		replacementPolicy = (PageReplacementPolicy) Lib.constructObject(Config
+				.getString("VMKernel.replacementPolicy",
+						"nachos.vm.WSClockPolicy"));
+
+		new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					int[] cluster = (int[]) writeBackQueue.removeFirst();
+					if (cluster.length == 0)
+						compactSwap();
+					else
+						finishWriteBack(cluster);
+				}
+			}
+		}).setName("swap writer").fork();
+
+		/*
+		 * By default, keep between 1/16 and 1/8 of memory free. Keeping more
+		 * than a quarter free would take pages a faulting process still
+		 * needs to finish its instruction.
+		 */
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		freeFramesHigh = Math.min(numPhysPages / 4, Config.getInteger(
+				"VMKernel.freeFramesHigh", numPhysPages / 8));
+		freeFramesLow = Math.min(freeFramesHigh, Config.getInteger(
+				"VMKernel.freeFramesLow", numPhysPages / 16));
+
+		/*
+		 * Shared segments pin their frames, so they may take at most half of
+		 * memory less a TLB's worth, leaving the pager enough frames to bring
+		 * in everything an instruction touches.
+		 */
+		maxSharedSegmentPages = Math.max(0, numPhysPages / 2
+				- Machine.processor().getTLBSize());
+
+		pageoutNeeded = new Condition2(iptLock);
+		new KThread(new Runnable() {
+			public void run() {
+				pageOut();
+			}
+		}).setName("pageout").fork();
+
+		prefetchQueue = new SynchList();
+		new KThread(new Runnable() {
+			public void run() {
+				while (true)
+					((Runnable) prefetchQueue.removeFirst()).run();
+			}
+		}).setName("prefetcher").fork();
+
+		suspendedProcesses = new LinkedList<VMProcess>();
+		processResumed = new Condition2(iptLock);
+		new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(workingSetInterval);
+					sampleWorkingSets();
+				}
+			}
+		}).setName("working set sampler").fork();
+
+		frameChecksums = new int[ipt.length];
+		frameKeys = new long[ipt.length];
+		Arrays.fill(frameKeys, -1);
+		if (mergeInterval > 0) {
+			new KThread(new Runnable() {
+				public void run() {
+					while (true) {
+						ThreadedKernel.alarm.waitUntil(mergeInterval);
+						mergeFrames();
+					}
+				}
+			}).setName("page merger").fork();
+		}
+		// a transfer costs as much as a request to the stub file system
+		swapSpace = new SwapSpace(Config.getInteger(
+				"VMKernel.swapChunkPages", 64), Config.getInteger(
+				"VMKernel.swapAccessTime", 1000));
+		swapAllocator = new SwapAllocator(swapSpace.getCapacity());
+
+		// by default, compressed pages may take a quarter as much as memory
+		swapCache = new SwapCache(Processor.pageSize
+				* Config.getInteger("VMKernel.swapCachePages", numPhysPages / 4));
 	}
 
 	/**
@@ -52,13 +145,27 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		swapSpace.print();
 		super.terminate();
 	}
 	
+	/**
+	 * The state of one physical frame: the process and virtual page it
+	 * holds, and the reasons it may not be evicted.
+	 */
 	public class PageTableEntryInfo {
 		private int processID;
-		private TranslationEntry entry;
+		private VMProcess owner;
+		private int vpn;
+		private ExecutableImage image;
 		private int pinCount;
+		private int refCount;
+		private int writeBackIndex = -1;
+		private boolean reading = false;
+		private Condition2 readDone = new Condition2(iptLock);
+		private boolean merged = false;
+		private boolean discarded = false;
+		private ArrayList<VMProcess> mappers = new ArrayList<VMProcess>();
 		
 		public PageTableEntryInfo() {
 		}
@@ -69,11 +176,47 @@ public class VMKernel extends UserKernel {
 		public void setProcessID(int processID) {
 			this.processID = processID;
 		}
-		public TranslationEntry getEntry() {
-			return entry;
+		/**
+		 * Get the process whose page this frame holds, or <tt>null</tt> if
+		 * the frame is free or shared by several processes.
+		 */
+		public VMProcess getOwner() {
+			return owner;
+		}
+		public int getVPN() {
+			return vpn;
+		}
+		/**
+		 * Record that this frame holds the specified page of the specified
+		 * process, or pass <tt>null</tt> to record that it holds none. Either
+		 * way, no other process maps it.
+		 */
+		public void setOwner(VMProcess owner, int vpn) {
+			if (this.owner != null)
+				this.owner.numResident--;
+			if (owner != null)
+				owner.numResident++;
+
+			this.owner = owner;
+			this.vpn = vpn;
+			this.processID = (owner != null) ? owner.processID() : -1;
+			this.image = null;
+			mappers.clear();
+		}
+		/**
+		 * Get the executable whose read-only page this frame holds for every
+		 * process running it, or <tt>null</tt> if it holds none.
+		 */
+		public ExecutableImage getImage() {
+			return image;
 		}
-		public void setEntry(TranslationEntry entry) {
-			this.entry = entry;
+		/**
+		 * Record that this frame holds the specified read-only page of an
+		 * executable, shared by every process running it.
+		 */
+		public void setShared(ExecutableImage image, int vpn) {
+			setOwner(null, vpn);
+			this.image = image;
 		}
 		public int getPinCount() {
 			return pinCount;
@@ -81,60 +224,1132 @@ public class VMKernel extends UserKernel {
 		public void setPinCount(int pinCount) {
 			this.pinCount = pinCount;
 		}
+		/**
+		 * Get the number of page tables that map this frame through a shared
+		 * segment. A frame with a nonzero reference count is not owned by
+		 * any single process.
+		 */
+		public int getRefCount() {
+			return refCount;
+		}
+		public void setRefCount(int refCount) {
+			this.refCount = refCount;
+		}
+		/**
+		 * Get the swap page this frame is being written to, or -1 if no
+		 * write-back is in progress.
+		 */
+		public int getWriteBackIndex() {
+			return writeBackIndex;
+		}
+		/**
+		 * Test whether a page is being read into this frame, so that it is
+		 * not yet mapped.
+		 */
+		public boolean isReading() {
+			return reading;
+		}
+		/**
+		 * Test whether this frame holds a page merged from identical pages
+		 * of several processes, each mapping it at the VPN recorded here.
+		 * The reference count is the number of processes mapping it.
+		 */
+		public boolean isMerged() {
+			return merged;
+		}
+		/**
+		 * Get the processes mapping this shared text or merged frame, each at
+		 * the VPN recorded here. Empty for any other frame.
+		 */
+		public List<VMProcess> getMappers() {
+			return mappers;
+		}
+		/**
+		 * Record that the specified process maps this shared text or merged
+		 * frame.
+		 */
+		public void addMapper(VMProcess process) {
+			mappers.add(process);
+		}
+		/**
+		 * Record that the specified process no longer maps this shared text
+		 * or merged frame.
+		 */
+		public void removeMapper(VMProcess process) {
+			Lib.assertTrue(mappers.remove(process));
+		}
 	}
-	
-       public static OpenFile swapFile;
-	
-       static class indexAtFreeSwapPages {
- 	   private int processID;
-           private boolean occupied;
-		
-	   public indexAtFreeSwapPages() {
-	   }
-	
-           public indexAtFreeSwapPages(int processID, boolean occupied) {
-              this.processID = processID;
-              this.occupied = occupied;
-	   }
-	
-	   public int getProcessID() {
-	      return processID;
-	   }
-	
-           public void setProcessID(int processID) {
-	      this.processID = processID;
-	   }
-	
-           public boolean getOccupied() {
-	      return occupied;
-	   }
-	
-           public void setOccupied(boolean occupied) {
-	     this.occupied = occupied;
-	   }
+
+	/*
+	 * The states a page of a process moves through. A page is loaded from
+	 * the COFF file or the zero frame (unloaded, reading, resident), written
+	 * to swap by the swap writer (resident, writing, swapped), and read back
+	 * (swapped, reading, resident). Only reads are waited for by faulting
+	 * threads; a page being written stays mapped.
+	 */
+
+	/** The page was never loaded, or was clean when evicted. */
+	public static final int pageUnloaded = 0;
+	/** The page is mapped to a frame. */
+	public static final int pageResident = 1;
+	/** The page is being read into a frame from the COFF file or swap. */
+	public static final int pageReading = 2;
+	/** The page is mapped, and its frame is being written to swap. */
+	public static final int pageWriting = 3;
+	/** The page is in swap, in the swap cache or the swap file. */
+	public static final int pageSwapped = 4;
+
+	/**
+	 * Return the state of a page from its page table entry. The caller must
+	 * hold the page table lock.
+	 *
+	 * @param entry the packed page table entry of a mapped page.
+	 * @return one of <tt>pageUnloaded</tt>, <tt>pageResident</tt>,
+	 * <tt>pageReading</tt>, <tt>pageWriting</tt> or <tt>pageSwapped</tt>.
+	 */
+	public static int getPageState(int entry) {
+		if ((entry & PageTable.inFlight) != 0)
+			return pageReading;
+
+		if ((entry & PageTable.valid) != 0) {
+			int ppn = PageTable.getNumber(entry);
+			return (ipt[ppn].getWriteBackIndex() != -1) ? pageWriting
+					: pageResident;
+		}
+
+		if ((entry & PageTable.swapped) != 0)
+			return pageSwapped;
+
+		return pageUnloaded;
 	}
 
-        public static LinkedList<indexAtFreeSwapPages> freeSwapPages;
+	/**
+	 * Note that a page is about to be read into a frame, pinning the frame
+	 * until <tt>finishPageIn()</tt> is called. The caller must hold the page
+	 * table lock, and marks the page <tt>inFlight</tt> in its page table.
+	 *
+	 * @param ppn the frame the page is read into.
+	 */
+	public static void startPageIn(int ppn) {
+		pinPage(ppn);
+		ipt[ppn].reading = true;
+		pendingPageIns++;
+	}
+
+	/**
+	 * Note that a page has been read into a frame and mapped, waking the
+	 * threads waiting for it. The caller must hold the page table lock.
+	 *
+	 * @param ppn the frame the page was read into.
+	 */
+	public static void finishPageIn(int ppn) {
+		unpinPage(ppn);
+		ipt[ppn].reading = false;
+		pendingPageIns--;
+		ipt[ppn].readDone.wakeAll();
+	}
+
+	/**
+	 * Wait until a page being read into the specified frame is mapped,
+	 * giving up the page table lock in the meantime. The caller must hold
+	 * the page table lock.
+	 *
+	 * @param ppn the frame named by an <tt>inFlight</tt> page table entry.
+	 */
+	public static void waitForPageIn(int ppn) {
+		while (ipt[ppn].reading)
+			iptWait(ipt[ppn].readDone);
+	}
+	
+	/** The slots holding pages written out of memory. */
+	public static SwapSpace swapSpace;
+
+	/** The swap slots in use. Guarded by <tt>iptLock</tt>. */
+	public static SwapAllocator swapAllocator;
+
+	/** Compressed pages kept in memory in front of <tt>swapSpace</tt>. */
+	public static SwapCache swapCache;
+
+	/** The smallest swap file, in slots, worth shrinking. */
+	private static final int minCompactSlots = Config.getInteger(
+			"VMKernel.minCompactSwapSlots", 64);
+
+	/** The most pages a pass of <tt>compactSwap()</tt> moves. */
+	private static final int compactSwapBatch = Config.getInteger(
+			"VMKernel.compactSwapBatch", 16);
+
+	/**
+	 * Set while a pass of <tt>compactSwap()</tt> is queued or running.
+	 * Guarded by <tt>iptLock</tt>.
+	 */
+	private static boolean compactionQueued = false;
 	
 	public static PageTableEntryInfo[] ipt;
+
+	/**
+	 * A frame of zeros, mapped read-only by every page of the stack and BSS
+	 * until it is first written.
+	 */
+	public static int zeroPage;
 	
 	public static Lock iptLock;
 	
 	public static Lock tlbLock;
+
+	/**
+	 * An invalid translation. The processor copies every entry written to
+	 * the TLB, so this one entry serves to clear any TLB slot.
+	 */
+	public static final TranslationEntry invalidTLBEntry = new TranslationEntry();
+
+	/** Every process with an address space. Guarded by <tt>iptLock</tt>. */
+	public static HashSet<VMProcess> processes;
+
+	/** Shared-memory segments, indexed by the key they were created with. */
+	public static HashMap<Integer, SharedSegment> sharedSegments;
+
+	/** Guards access to the shared segment table. */
+	public static Lock sharedSegmentsLock;
+
+	/**
+	 * The frames held by all shared segments together. Guarded by
+	 * <tt>sharedSegmentsLock</tt>.
+	 */
+	public static int numSharedSegmentPages = 0;
+
+	/** The most frames shared segments may hold together. */
+	public static int maxSharedSegmentPages;
 	
-	public static Lock freeSwapPagesLock;
-	
-	private static boolean iptLockAcquired;
-	
-	private static boolean tlbLockAcquired;
-	
-	private static boolean freeSwapPagesLockAcquired;
+	private static int iptLockDepth, tlbLockDepth;
+
+	/** Chooses the pages to evict. Guarded by <tt>iptLock</tt>. */
+	public static PageReplacementPolicy replacementPolicy;
+
+	/**
+	 * The largest number of dirty frames queued for write-back at once, and
+	 * so the largest number written to swap in one request.
+	 */
+	private static final int maxPendingWriteBacks = Config.getInteger(
+			"VMKernel.maxPendingWriteBacks", 4);
+
+	private static int pendingWriteBacks = 0;
+
+	/** The number of pages being read in. Guarded by <tt>iptLock</tt>. */
+	private static int pendingPageIns = 0;
+
+	/**
+	 * Clusters of frames waiting for the swap writer thread, and empty
+	 * clusters asking it to compact the swap file.
+	 */
+	private static SynchList writeBackQueue;
+
+	/** Signalled whenever a write-back completes. */
+	private static Condition2 writeBackDone;
+
+	/**
+	 * The number of free frames below which the pageout thread is woken, or
+	 * 0 to never wake it.
+	 */
+	public static int freeFramesLow;
+
+	/** The number of free frames the pageout thread restores. */
+	public static int freeFramesHigh;
+
+	/** Signalled when fewer than <tt>freeFramesLow</tt> frames are free. */
+	private static Condition2 pageoutNeeded;
+
+	/**
+	 * The process whose frames alone may be evicted, or <tt>null</tt> if any
+	 * process's may. Set only while <tt>evictPage()</tt> asks the policy for
+	 * victims.
+	 */
+	private static VMProcess evictionScope = null;
+
+	/** The ticks between two samples of the processes' working sets. */
+	private static final int workingSetInterval = Config.getInteger(
+			"VMKernel.workingSetInterval", 10000);
+
+	/**
+	 * Processes suspended because the resident sets of all processes did not
+	 * fit in memory, longest suspended first. Guarded by <tt>iptLock</tt>.
+	 */
+	private static LinkedList<VMProcess> suspendedProcesses;
+
+	/** Signalled when a suspended process is resumed. */
+	public static Condition2 processResumed;
+
+	/**
+	 * The ticks between two scans for identical frames, or 0 to never scan.
+	 * Merging is off unless configured, because a merged frame is never
+	 * evicted: it stays resident until every page mapping it is written or
+	 * unmapped, however short memory gets.
+	 */
+	private static final int mergeInterval = Config.getInteger(
+			"VMKernel.mergeInterval", 0);
+
+	/**
+	 * The checksum of each frame at the last scan, and the key of the page
+	 * it held then, or -1 if the frame could not be merged.
+	 */
+	private static int[] frameChecksums;
+	private static long[] frameKeys;
+
+	/** The frames merged pages save now, not counting the zero frame. */
+	private static int mergedFramesSaved = 0;
+
+	/** Prefetches, as <tt>Runnable</tt>s, waiting for the prefetch thread. */
+	public static SynchList prefetchQueue;
 	
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
 	private static final char dbgVM = 'v';
 
+	/**
+	 * Free one frame by evicting a resident page chosen by
+	 * <tt>replacementPolicy</tt>. A clean page is evicted at once; dirty
+	 * pages are gathered while the policy is asked again, and written to
+	 * swap together as one cluster. The faulting thread only waits for a
+	 * write-back when the policy has no clean page left to offer, giving up
+	 * the page table lock while it waits. Once swap space is full, dirty
+	 * pages stay in memory and only clean pages are evicted. The caller must
+	 * hold the page table lock.
+	 *
+	 * @return <tt>true</tt> if a frame was freed or a write-back completed,
+	 * so that the caller should try to allocate again, or <tt>false</tt> if
+	 * every frame is pinned or shared, or dirty with swap space full.
+	 */
+	public static boolean evictPage() {
+		return evictPage(null);
+	}
+
+	/**
+	 * Free one frame, as <tt>evictPage()</tt> does, but only by evicting a
+	 * page of the specified process, so that a process at its resident-set
+	 * limit replaces its own pages rather than those of other processes.
+	 *
+	 * @param process the process whose page to evict, or <tt>null</tt> to
+	 * evict any page.
+	 * @return <tt>true</tt> if a frame was freed or a write-back completed.
+	 */
+	public static boolean evictPage(VMProcess process) {
+		evictionScope = process;
+
+		collectTLBReferences();
+		replacementPolicy.updateReferences();
+
+		// with swap full, every dirty page offered is set aside in the cluster
+		int[] cluster = new int[ipt.length];
+		int clusterSize = 0;
+
+		for (int i = 0; i < ipt.length; i++) {
+			int ppn = replacementPolicy.chooseVictim();
+			if (ppn == -1)
+				break;
+
+			Lib.assertTrue(isEvictable(ppn));
+
+			PageTableEntryInfo frame = ipt[ppn];
+			VMProcess owner = frame.getOwner();
+			if (owner == null) {
+				evictionScope = null;
+				evictSharedPage(ppn);
+				scheduleWriteBack(cluster, clusterSize);
+				return true;
+			}
+
+			int vpn = frame.getVPN();
+			if ((owner.pages.get(vpn) & PageTable.dirty) == 0) {
+				evictionScope = null;
+				owner.evictPage(vpn, -1);
+				scheduleWriteBack(cluster, clusterSize);
+				return true;
+			}
+
+			if (pendingWriteBacks + clusterSize >= maxPendingWriteBacks
+					&& !swapAllocator.isFull())
+				break;
+
+			// the pin keeps the policy from offering the frame again
+			frame.pinCount++;
+			cluster[clusterSize++] = ppn;
+		}
+
+		evictionScope = null;
+		scheduleWriteBack(cluster, clusterSize);
+
+		if (pendingWriteBacks == 0)
+			return false;
+
+		iptWait(writeBackDone);
+		return true;
+	}
+
+	/**
+	 * Wake the pageout thread if fewer than <tt>freeFramesLow</tt> frames are
+	 * free. Called after a frame is allocated, with the page table lock held.
+	 */
+	public static void checkFreeFrames() {
+		if (frameAllocator.getNumFree() < freeFramesLow)
+			pageoutNeeded.wake();
+	}
+
+	/**
+	 * The body of the pageout thread. Each time it is woken, it gives back
+	 * clean page cache frames and evicts pages, queueing dirty ones for
+	 * write-back, until <tt>freeFramesHigh</tt> frames are free or nothing
+	 * more can be evicted, so that faulting threads usually find a free
+	 * frame without evicting anything themselves.
+	 */
+	private static void pageOut() {
+		iptLockAcquire();
+
+		while (true) {
+			iptWait(pageoutNeeded);
+
+			// frames being written back count, as they are freed shortly
+			while (frameAllocator.getNumFree() + pendingWriteBacks
+					< freeFramesHigh) {
+				int ppn = (pageCache != null) ? pageCache.reclaimFrame() : -1;
+				if (ppn != -1)
+					frameAllocator.free(ppn);
+				else if (!evictPage())
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Estimate the working set of every process from the pages it referenced
+	 * since the last sample, let each adjust its resident-set limit, and
+	 * suspend or resume a process so that the limits of the running processes
+	 * fit in memory. Called by the working set sampler thread every
+	 * <tt>workingSetInterval</tt> ticks.
+	 */
+	private static void sampleWorkingSets() {
+		iptLockAcquire();
+
+		// the sampler is a kernel thread, so the TLB has already been flushed
+		for (VMProcess process : processes)
+			process.workingSetSize = 0;
+
+		for (int ppn = 0; ppn < ipt.length; ppn++) {
+			VMProcess owner = ipt[ppn].getOwner();
+			int vpn = ipt[ppn].getVPN();
+			if (owner != null
+					&& (owner.pages.get(vpn) & PageTable.referenced) != 0) {
+				owner.pages.clearFlags(vpn, PageTable.referenced);
+				owner.workingSetSize++;
+			}
+		}
+
+		int numPhysPages = ipt.length;
+		int demand = 0, numRunning = 0;
+		VMProcess largest = null;
+
+		for (VMProcess process : processes) {
+			// a suspended process faults no more, so its limit shrinks until
+			// it fits beside the others
+			process.updateResidentLimit(numPhysPages);
+			if (process.suspended)
+				continue;
+
+			demand += process.residentLimit;
+			numRunning++;
+			if (largest == null
+					|| process.residentLimit > largest.residentLimit)
+				largest = process;
+		}
+
+		// one process at a time, so the limits can settle in between
+		if (demand > numPhysPages && numRunning > 1) {
+			largest.suspended = true;
+			suspendedProcesses.add(largest);
+			Machine.stats().numSuspensions++;
+
+			Lib.debug(dbgVM, "suspended process " + largest.processID()
+					+ " (resident-set limits " + demand + " pages)");
+		}
+		else if (!suspendedProcesses.isEmpty()
+				&& (numRunning == 0 || demand
+						+ suspendedProcesses.getFirst().residentLimit
+						<= numPhysPages)) {
+			suspendedProcesses.removeFirst().suspended = false;
+			processResumed.wakeAll();
+		}
+
+		iptLockRelease();
+	}
+
+	/**
+	 * Look for resident pages with the same contents, and map each set of
+	 * them to a single read-only frame, freeing the others. Only pages of
+	 * different processes at the same VPN are merged, as left by several
+	 * runs of one program, and only once a page's checksum was the same at
+	 * the last scan, so that pages being written are left alone. Pages
+	 * holding only zeros map the zero frame instead. A write to a merged
+	 * page gives it a copy of its own again. Called by the page merger
+	 * thread every <tt>mergeInterval</tt> ticks.
+	 */
+	private static void mergeFrames() {
+		iptLockAcquire();
+
+		// the merger is a kernel thread, so the TLB has already been flushed
+		HashMap<Long, Integer> candidates = new HashMap<Long, Integer>();
+
+		for (int ppn = 0; ppn < ipt.length; ppn++) {
+			PageTableEntryInfo frame = ipt[ppn];
+			int vpn = frame.getVPN();
+
+			if (frame.isMerged()) {
+				candidates.put(new Long(((long) vpn << 32)
+						| (checksumFrame(ppn) & 0xFFFFFFFFL)), new Integer(ppn));
+				continue;
+			}
+
+			if (!isMergeable(ppn)) {
+				frameKeys[ppn] = -1;
+				continue;
+			}
+
+			long key = getPageKey(ppn);
+			int checksum = checksumFrame(ppn);
+			boolean stable = (frameKeys[ppn] == key && frameChecksums[ppn] == checksum);
+			frameKeys[ppn] = key;
+			frameChecksums[ppn] = checksum;
+			if (!stable)
+				continue;
+
+			if (checksum == 0 && framesEqual(ppn, zeroPage)) {
+				mergeZeroPage(ppn);
+				continue;
+			}
+
+			Long bucket = new Long(((long) vpn << 32)
+					| (checksum & 0xFFFFFFFFL));
+			Integer other = candidates.get(bucket);
+			if (other == null)
+				candidates.put(bucket, new Integer(ppn));
+			else if (framesEqual(other.intValue(), ppn))
+				mergeFrame(other.intValue(), ppn);
+		}
+
+		iptLockRelease();
+	}
+
+	/**
+	 * Test whether a frame holds a private, writable page that is resident
+	 * and idle, and so may be merged. The caller must hold the page table
+	 * lock.
+	 */
+	private static boolean isMergeable(int ppn) {
+		PageTableEntryInfo frame = ipt[ppn];
+		VMProcess owner = frame.getOwner();
+		if (owner == null || frame.getPinCount() > 0
+				|| frame.getWriteBackIndex() != -1 || frame.isReading()
+				|| frame.getRefCount() > 0)
+			return false;
+
+		int entry = owner.pages.get(frame.getVPN());
+		return (entry & PageTable.valid) != 0
+				&& (entry & (PageTable.readOnly | PageTable.prefetched)) == 0;
+	}
+
+	private static int checksumFrame(int ppn) {
+		byte[] memory = Machine.processor().getMemory();
+
+		int checksum = 0;
+		for (int i = ppn * Processor.pageSize; i < (ppn + 1)
+				* Processor.pageSize; i++)
+			checksum = checksum * 31 + memory[i];
+
+		return checksum;
+	}
+
+	private static boolean framesEqual(int ppn1, int ppn2) {
+		byte[] memory = Machine.processor().getMemory();
+
+		for (int i = 0; i < Processor.pageSize; i++) {
+			if (memory[ppn1 * Processor.pageSize + i] != memory[ppn2
+					* Processor.pageSize + i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Map the page in a frame holding only zeros to the zero frame, and free
+	 * the frame.
+	 */
+	private static void mergeZeroPage(int ppn) {
+		VMProcess owner = ipt[ppn].getOwner();
+		int vpn = ipt[ppn].getVPN();
+		int entry = owner.pages.get(vpn);
+
+		owner.pages.set(vpn, PageTable.makeEntry(zeroPage, (entry
+				& (PageTable.mapped | PageTable.used | PageTable.referenced))
+				| PageTable.valid | PageTable.zeroFill));
+		freeMergedFrame(ppn);
+
+		Machine.stats().numPagesMerged++;
+		Machine.stats().numZeroPagesMerged++;
+	}
+
+	/**
+	 * Map the page in a frame to another frame holding the same page of
+	 * another process, making that one a merged frame if it is not already,
+	 * and free the first.
+	 *
+	 * @param target the frame to keep.
+	 * @param ppn the frame to free.
+	 */
+	private static void mergeFrame(int target, int ppn) {
+		PageTableEntryInfo frame = ipt[target];
+		int vpn = frame.getVPN();
+
+		if (!frame.isMerged()) {
+			VMProcess targetOwner = frame.getOwner();
+			targetOwner.pages.setFlags(vpn, PageTable.merged);
+			replacementPolicy.pageFreed(target);
+			frame.setOwner(null, vpn);
+			frame.addMapper(targetOwner);
+			frame.merged = true;
+			frame.setRefCount(1);
+			frameKeys[target] = -1;
+		}
+
+		VMProcess owner = ipt[ppn].getOwner();
+		int entry = owner.pages.get(vpn);
+
+		owner.pages.set(vpn, PageTable.makeEntry(target, (entry
+				& (PageTable.mapped | PageTable.used | PageTable.referenced
+						| PageTable.dirty)) | PageTable.valid | PageTable.merged));
+		frame.addMapper(owner);
+		freeMergedFrame(ppn);
+
+		frame.setRefCount(frame.getRefCount() + 1);
+		Machine.stats().numPagesMerged++;
+		if (++mergedFramesSaved > Machine.stats().maxMergedFramesSaved)
+			Machine.stats().maxMergedFramesSaved = mergedFramesSaved;
+	}
+
+	private static void freeMergedFrame(int ppn) {
+		replacementPolicy.pageFreed(ppn);
+		ipt[ppn].setOwner(null, 0);
+		frameAllocator.free(ppn);
+		frameKeys[ppn] = -1;
+	}
+
+	/**
+	 * Drop a process's mapping of a merged frame, because the process wrote
+	 * its page or is exiting. Once only one process maps the frame, it
+	 * becomes that process's private frame again. The caller must hold the
+	 * page table lock.
+	 *
+	 * @param process the process giving up its mapping.
+	 * @param ppn the merged frame.
+	 */
+	public static void unmapMergedFrame(VMProcess process, int ppn) {
+		PageTableEntryInfo frame = ipt[ppn];
+		int vpn = frame.getVPN();
+
+		frame.removeMapper(process);
+		frame.setRefCount(frame.getRefCount() - 1);
+		mergedFramesSaved--;
+		if (frame.getRefCount() > 1)
+			return;
+
+		VMProcess last = frame.getMappers().get(0);
+		last.pages.clearFlags(vpn, PageTable.merged);
+		frame.merged = false;
+		frame.setRefCount(0);
+		frame.setOwner(last, vpn);
+		replacementPolicy.pageLoaded(ppn);
+	}
+
+	/**
+	 * Forget a process that is exiting, resuming it first if it is
+	 * suspended. The caller must hold the page table lock.
+	 */
+	public static void removeProcess(VMProcess process) {
+		processes.remove(process);
+
+		if (suspendedProcesses.remove(process)) {
+			process.suspended = false;
+			processResumed.wakeAll();
+		}
+	}
+
+	/**
+	 * Test whether a frame may be evicted now: it holds a page of a single
+	 * process or a shared text page, and it is neither pinned, being written
+	 * to swap, nor mapped through a shared segment. While a process is
+	 * replacing its own pages, only its frames may be evicted. The caller
+	 * must hold the page table lock.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the frame may be evicted.
+	 */
+	public static boolean isEvictable(int ppn) {
+		PageTableEntryInfo frame = ipt[ppn];
+		VMProcess owner = frame.getOwner();
+
+		if (owner == null && frame.getImage() == null)
+			return false;
+
+		if (evictionScope != null && owner != evictionScope)
+			return false;
+
+		// an exiting process frees its frames itself, without writing them
+		if (owner != null && owner.exiting)
+			return false;
+
+		return frame.getPinCount() == 0 && frame.getWriteBackIndex() == -1
+				&& (owner == null || frame.getRefCount() == 0);
+	}
+
+	/**
+	 * Return a key identifying the page a frame holds, which stays the same
+	 * if the page is evicted and faulted in again. The caller must hold the
+	 * page table lock.
+	 *
+	 * @param ppn the physical page number of a frame holding a page.
+	 * @return the key.
+	 */
+	public static long getPageKey(int ppn) {
+		PageTableEntryInfo frame = ipt[ppn];
+
+		// shared text pages are keyed by executable, with the sign bit set
+		int id = (frame.getOwner() != null) ? frame.getProcessID() : (System
+				.identityHashCode(frame.getImage()) | 0x80000000);
+
+		return ((long) id << 32) | frame.getVPN();
+	}
+
+	/**
+	 * Merge the used and dirty bits of the running process's TLB entries
+	 * into its page table, clearing the used bits in the TLB so the next
+	 * sweep sees only new references.
+	 */
+	private static void collectTLBReferences() {
+		UserProcess process = currentProcess();
+		if (!(process instanceof VMProcess))
+			return;
+
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+			TranslationEntry entry = Machine.processor().readTLBEntry(i);
+			if (entry.valid && (entry.used || entry.dirty)) {
+				((VMProcess) process).pages.updateFromTLB(entry);
+				entry.used = false;
+				Machine.processor().writeTLBEntry(i, entry);
+			}
+		}
+	}
+
+	/**
+	 * Clear the used bit of a frame in every page table mapping it. The
+	 * caller must hold the page table lock.
+	 *
+	 * @param ppn the physical page number of a frame holding a page.
+	 * @return <tt>true</tt> if any process had referenced the frame.
+	 */
+	public static boolean clearUsedBits(int ppn) {
+		PageTableEntryInfo frame = ipt[ppn];
+		int vpn = frame.getVPN();
+
+		if (frame.getOwner() != null) {
+			PageTable pages = frame.getOwner().pages;
+			if ((pages.get(vpn) & PageTable.used) == 0)
+				return false;
+
+			pages.clearFlags(vpn, PageTable.used);
+			return true;
+		}
+
+		boolean referenced = false;
+		for (VMProcess process : frame.getMappers()) {
+			if ((process.pages.get(vpn) & PageTable.used) != 0) {
+				process.pages.clearFlags(vpn, PageTable.used);
+				referenced = true;
+			}
+		}
+
+		return referenced;
+	}
+
+	/**
+	 * Evict a shared text frame, unmapping it from every process running the
+	 * executable. The page is clean, so it is simply read again on the next
+	 * fault.
+	 */
+	private static void evictSharedPage(int ppn) {
+		PageTableEntryInfo frame = ipt[ppn];
+		int vpn = frame.getVPN();
+
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+			if (Machine.processor().readTLBEntry(i).ppn == ppn)
+				Machine.processor().writeTLBEntry(i, invalidTLBEntry);
+		}
+
+		for (VMProcess process : frame.getMappers())
+			process.pages.set(vpn, PageTable.makeEntry(0, PageTable.mapped
+					| PageTable.readOnly));
+
+		replacementPolicy.pageEvicted(ppn);
+		Machine.stats().numPageEvictions++;
+
+		frame.getImage().evictSharedPage(vpn);
+		frame.setRefCount(0);
+		frame.setOwner(null, 0);
+		frameAllocator.free(ppn);
+	}
+
+	/**
+	 * Start writing a cluster of dirty frames, already pinned by the caller,
+	 * to consecutive swap slots. The frames stay mapped and pinned while the
+	 * swap writer thread copies them out; their dirty bits are cleared now,
+	 * so a write by a process in the meantime is noticed afterwards. If swap
+	 * space has no free run that long, only as many frames as fit in one
+	 * are written, and the others are unpinned and stay dirty.
+	 */
+	private static void scheduleWriteBack(int[] cluster, int count) {
+		if (count == 0)
+			return;
+
+		// neighbouring pages of a process get neighbouring slots, so that a
+		// fault on one can read the others back in the same request
+		for (int i = 1; i < count; i++) {
+			int ppn = cluster[i];
+			int j = i;
+			for (; j > 0 && getPageKey(cluster[j - 1]) > getPageKey(ppn); j--)
+				cluster[j] = cluster[j - 1];
+			cluster[j] = ppn;
+		}
+
+		int numWritten = Math.min(count, maxPendingWriteBacks
+				- pendingWriteBacks);
+		int firstIndex = -1;
+		for (; numWritten > 0; numWritten /= 2) {
+			firstIndex = swapAllocator.allocateContiguous(numWritten);
+			if (firstIndex != -1)
+				break;
+		}
+
+		for (int i = numWritten; i < count; i++)
+			ipt[cluster[i]].pinCount--;
+
+		if (numWritten == 0)
+			return;
+
+		count = numWritten;
+		for (int i = 0; i < count; i++) {
+			PageTableEntryInfo frame = ipt[cluster[i]];
+			frame.getOwner().pages.clearFlags(frame.getVPN(), PageTable.dirty);
+			frame.writeBackIndex = firstIndex + i;
+
+			for (int j = 0; j < Machine.processor().getTLBSize(); j++) {
+				TranslationEntry entry = Machine.processor().readTLBEntry(j);
+				if (entry.valid && entry.ppn == cluster[i] && entry.dirty) {
+					entry.dirty = false;
+					Machine.processor().writeTLBEntry(j, entry);
+				}
+			}
+		}
+
+		pendingWriteBacks += count;
+		writeBackQueue.add(Arrays.copyOf(cluster, count));
+	}
+
+	/**
+	 * Write a cluster queued by <tt>scheduleWriteBack()</tt> to swap through
+	 * the swap cache, then evict each of its frames unless it was written or
+	 * pinned in the meantime. Frames discarded by an exiting process before
+	 * the write starts are not written at all, and those discarded during it
+	 * are freed afterwards. Called by the swap writer thread.
+	 */
+	private static void finishWriteBack(int[] cluster) {
+		int pageSize = Processor.pageSize;
+		byte[] memory = Machine.processor().getMemory();
+
+		iptLockAcquire();
+
+		int firstIndex = ipt[cluster[0]].getWriteBackIndex();
+		boolean[] skipped = new boolean[cluster.length];
+		byte[] data = new byte[cluster.length * pageSize];
+		for (int i = 0; i < cluster.length; i++) {
+			if (ipt[cluster[i]].discarded) {
+				skipped[i] = true;
+				freeDiscardedFrame(cluster[i]);
+			}
+			else {
+				System.arraycopy(memory, cluster[i] * pageSize, data, i
+						* pageSize, pageSize);
+			}
+		}
+
+		iptLockRelease();
+
+		for (int i = 0; i < cluster.length; i++) {
+			if (skipped[i])
+				continue;
+
+			int runLength = 1;
+			while (i + runLength < cluster.length && !skipped[i + runLength])
+				runLength++;
+
+			swapCache.write(firstIndex + i, (runLength == cluster.length) ? data
+					: Arrays.copyOfRange(data, i * pageSize, (i + runLength)
+							* pageSize), runLength);
+			i += runLength - 1;
+		}
+
+		iptLockAcquire();
+
+		for (int i = 0; i < cluster.length; i++) {
+			PageTableEntryInfo frame = ipt[cluster[i]];
+			if (skipped[i])
+				continue;
+
+			if (frame.discarded) {
+				freeDiscardedFrame(cluster[i]);
+				continue;
+			}
+
+			VMProcess owner = frame.getOwner();
+			int vpn = frame.getVPN();
+			int index = frame.getWriteBackIndex();
+
+			frame.writeBackIndex = -1;
+			frame.pinCount--;
+			pendingWriteBacks--;
+
+			/*
+			 * Only a write makes the swap copy stale. The policy already
+			 * chose this page, so a mere reference does not save it, or a
+			 * policy that never clears used bits could never evict a dirty
+			 * page.
+			 */
+			if ((owner.pages.get(vpn) & PageTable.dirty) == 0
+					&& frame.getPinCount() == 0) {
+				owner.evictPage(vpn, index);
+			}
+			else {
+				// the swap slot is given back, so memory holds the only copy
+				owner.pages.setFlags(vpn, PageTable.dirty);
+				freeSwapSpace(index);
+			}
+		}
+
+		writeBackDone.wakeAll();
+
+		iptLockRelease();
+	}
+
+	/**
+	 * Wait until no page of the specified process is being read in. The
+	 * caller must hold the page table lock.
+	 */
+	public static void waitForPageIns(VMProcess process) {
+		boolean busy = true;
+		while (busy) {
+			busy = false;
+			for (int ppn = 0; ppn < ipt.length && !busy; ppn++) {
+				if (ipt[ppn].getOwner() == process && ipt[ppn].isReading()) {
+					waitForPageIn(ppn);
+					busy = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop a frame of an exiting process that is queued for or being written
+	 * to swap, without waiting for the write. The frame leaves the process
+	 * and the replacement policy now, and stays pinned until the swap writer
+	 * reaches it, which then frees it and its swap slot instead of evicting
+	 * it. The caller must hold the page table lock.
+	 *
+	 * @param ppn the frame.
+	 */
+	public static void discardWriteBack(int ppn) {
+		PageTableEntryInfo frame = ipt[ppn];
+
+		replacementPolicy.pageFreed(ppn);
+		frame.setOwner(null, 0);
+		frame.discarded = true;
+
+		Machine.stats().numWriteBacksDiscarded++;
+	}
+
+	private static void freeDiscardedFrame(int ppn) {
+		PageTableEntryInfo frame = ipt[ppn];
+
+		freeSwapSpace(frame.getWriteBackIndex());
+		frame.writeBackIndex = -1;
+		frame.discarded = false;
+		frame.pinCount--;
+		pendingWriteBacks--;
+
+		Lib.assertTrue(frame.getPinCount() == 0);
+		frameAllocator.free(ppn);
+	}
+
+	/**
+	 * Give back a page of the swap file, and have the swap writer thread
+	 * compact the file once at most a quarter of it is in use. The caller
+	 * must hold the page table lock.
+	 *
+	 * @param swapIndex the index of the page in the swap file.
+	 */
+	public static void freeSwapSpace(int swapIndex) {
+		swapCache.free(swapIndex);
+		swapAllocator.free(swapIndex);
+
+		if (!compactionQueued && isSwapFragmented()) {
+			compactionQueued = true;
+			writeBackQueue.add(new int[0]);
+		}
+	}
+
+	private static boolean isSwapFragmented() {
+		int numSlots = swapAllocator.getNumSlots();
+		return numSlots >= minCompactSlots
+				&& swapAllocator.getNumUsed() * 4 <= numSlots;
+	}
+
+	/**
+	 * Move the pages in the highest slots of the swap file into the lowest
+	 * free ones, at most <tt>compactSwapBatch</tt> of them, then shrink the
+	 * file to end after its last slot in use. If the file is still mostly
+	 * holes, another pass is queued behind the write-backs that arrived
+	 * meanwhile. While a page moves, its page table entry is marked
+	 * <tt>inFlight</tt> on a free frame pinned as if the page were being read
+	 * into it, so a fault on the page waits and then finds it in its new
+	 * slot; the page table lock is given up during the transfer. Pages of an
+	 * exiting process are left alone, as their slots are about to be freed.
+	 * Called by the swap writer thread.
+	 */
+	private static void compactSwap() {
+		byte[] data = new byte[Processor.pageSize];
+		int moved = 0;
+
+		iptLockAcquire();
+
+		while (moved < compactSwapBatch) {
+			VMProcess process = null;
+			int vpn = -1, slot = -1;
+			for (VMProcess p : processes) {
+				if (p.exiting)
+					continue;
+
+				PageTable pages = p.pages;
+				for (int i = pages.nextMapped(0); i != -1; i = pages
+						.nextMapped(i + 1)) {
+					int entry = pages.get(i);
+					if ((entry & PageTable.swapped) != 0
+							&& PageTable.getNumber(entry) > slot) {
+						process = p;
+						vpn = i;
+						slot = PageTable.getNumber(entry);
+					}
+				}
+			}
+
+			// the stand-in frame must not be one a fault is waiting for
+			if (process == null
+					|| UserKernel.frameAllocator.getNumFree() <= freeFramesLow)
+				break;
+
+			int ppn = UserKernel.frameAllocator.allocate();
+			if (ppn == -1)
+				break;
+
+			int newSlot = swapAllocator.allocate();
+			if (newSlot == -1 || newSlot > slot) {
+				if (newSlot != -1)
+					swapAllocator.free(newSlot);
+				UserKernel.frameAllocator.free(ppn);
+				break;
+			}
+
+			int flags = process.pages.get(vpn)
+					& (PageTable.mapped | PageTable.readOnly);
+
+			ipt[ppn].setOwner(process, vpn);
+			startPageIn(ppn);
+			process.pages.set(vpn, PageTable.makeEntry(ppn, flags
+					| PageTable.inFlight));
+
+			iptLockRelease();
+			if (!swapCache.read(slot, data, 0))
+				swapSpace.read(slot, data, 0, 1);
+			swapCache.write(newSlot, data, 1);
+			iptLockAcquire();
+
+			process.pages.set(vpn, PageTable.makeEntry(newSlot, flags
+					| PageTable.swapped));
+			freeSwapSpace(slot);
+			finishPageIn(ppn);
+			ipt[ppn].setOwner(null, 0);
+			UserKernel.frameAllocator.free(ppn);
+
+			moved++;
+		}
+
+		int numSlots = swapAllocator.getNumSlots();
+		int newNumSlots = swapAllocator.trim();
+		if (newNumSlots < numSlots) {
+			swapSpace.truncate(newNumSlots);
+			Lib.debug(dbgVM, "swap file compacted from " + numSlots + " to "
+					+ newNumSlots + " pages");
+		}
+
+		compactionQueued = (moved == compactSwapBatch) && isSwapFragmented();
+		if (compactionQueued)
+			writeBackQueue.add(new int[0]);
+
+		iptLockRelease();
+	}
+
+	/**
+	 * Sleep on a condition of <tt>iptLock</tt>, giving up the lock entirely
+	 * even if the caller acquired it more than once.
+	 */
+	public static void iptWait(Condition2 condition) {
+		int depth = iptLockDepth;
+		iptLockDepth = 0;
+
+		condition.sleep();
+
+		iptLockDepth = depth;
+	}
+
+	/**
+	 * Give up <tt>iptLock</tt> entirely while a page is read, so that other
+	 * threads may fault meanwhile, even if the caller acquired it more than
+	 * once.
+	 *
+	 * @return the depth to pass to <tt>iptLockReacquire()</tt>.
+	 */
+	public static int iptLockReleaseAll() {
+		int depth = iptLockDepth;
+		iptLockDepth = 0;
+		iptLock.release();
+
+		return depth;
+	}
+
+	/**
+	 * Acquire <tt>iptLock</tt> again after <tt>iptLockReleaseAll()</tt>.
+	 *
+	 * @param depth the depth <tt>iptLockReleaseAll()</tt> returned.
+	 */
+	public static void iptLockReacquire(int depth) {
+		iptLock.acquire();
+		iptLockDepth = depth;
+	}
+
 	public static void pinPage(int ppn) {
 		iptLockAcquire();
 		ipt[ppn].setPinCount(++ipt[ppn].pinCount);
@@ -147,46 +1362,36 @@ public class VMKernel extends UserKernel {
 		iptLockRelease();
 	}
 	
+	/*
+	 * The lock helpers below may be nested: each acquire must be paired with
+	 * a release, and only the outermost release gives up the lock.
+	 */
+
 	public static void iptLockAcquire() {
-		if(!VMKernel.iptLock.isHeldByCurrentThread() && !iptLockAcquired) {
-			VMKernel.iptLock.acquire();
-			iptLockAcquired = true;
-		}
+		if (iptLock.isHeldByCurrentThread())
+			iptLockDepth++;
+		else
+			iptLock.acquire();
 	}
 	
 	public static void iptLockRelease() {
-		if(!VMKernel.iptLock.isHeldByCurrentThread() && iptLockAcquired) {
-			VMKernel.iptLock.release();
-			iptLockAcquired = false;
-		}
+		if (iptLockDepth > 0)
+			iptLockDepth--;
+		else
+			iptLock.release();
 	}
 	
 	public static void tlbLockAcquire() {
-	//	System.err.println("tlbLockAcquire: " + VMKernel.tlbLock.isHeldByCurrentThread());
-		if(!VMKernel.tlbLock.isHeldByCurrentThread() && !tlbLockAcquired) {
-			VMKernel.tlbLock.acquire();
-			tlbLockAcquired = true;
-		}
+		if (tlbLock.isHeldByCurrentThread())
+			tlbLockDepth++;
+		else
+			tlbLock.acquire();
 	}
 	
 	public static void tlbLockRelease() {
-		if(!VMKernel.tlbLock.isHeldByCurrentThread() && tlbLockAcquired) {
-			VMKernel.tlbLock.release();
-			tlbLockAcquired = false;
-		}
-	}
-	
-	public static void freeSwapPagesLockAcquire() {
-		if(!VMKernel.freeSwapPagesLock.isHeldByCurrentThread() && !freeSwapPagesLockAcquired) {
-			VMKernel.freeSwapPagesLock.acquire();
-			freeSwapPagesLockAcquired = true;
-		}
-	}
-	
-	public static void freeSwapPagesLockRelease() {
-		if(!VMKernel.freeSwapPagesLock.isHeldByCurrentThread() && freeSwapPagesLockAcquired) {
-			VMKernel.freeSwapPagesLock.release();
-			freeSwapPagesLockAcquired = false;
-		}
+		if (tlbLockDepth > 0)
+			tlbLockDepth--;
+		else
+			tlbLock.release();
 	}
 }
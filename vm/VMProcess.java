@@ -16,6 +16,7 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+		Arrays.fill(savedTLBPages, -1);
 	}
 
 	/**
@@ -24,25 +25,29 @@ public class VMProcess extends UserProcess {
 	 */
 	public void saveState() {
 		/*
-		 * Flush TLB on context switch
+		 * Flush TLB on context switch, keeping the used and dirty bits the
+		 * processor set, and remembering which pages were mapped: those used
+		 * since the last switch from the front of savedTLBPages, the others
+		 * from the back. This runs in the middle of a context switch, so it
+		 * must not block on any lock, and it allocates nothing beyond the
+		 * copies the processor itself makes.
 		 */
-		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+		int tlbSize = Machine.processor().getTLBSize();
+		int hot = 0, cold = tlbSize - 1;
+
+		Arrays.fill(savedTLBPages, -1);
+		for (int i = 0; i < tlbSize; i++) {
 			TranslationEntry entry = Machine.processor().readTLBEntry(i);
-			// sync entry with page table if entry is valid
-			if (entry.valid) {
-				int correctVpn = VMKernel.ipt[entry.ppn].getEntry().vpn;
-				pageTable[correctVpn] = new TranslationEntry(pageTable[correctVpn].vpn,
-						entry.ppn, entry.valid, entry.readOnly, entry.used,
-						entry.dirty);
-				UserKernel.memoryLockAcquire();
-				VMKernel.iptLockAcquire();
-				VMKernel.ipt[entry.ppn].setEntry(new TranslationEntry(correctVpn,
-						entry.ppn, entry.valid, entry.readOnly, entry.used,
-						entry.dirty));
-				VMKernel.iptLockRelease();
-				UserKernel.memoryLockRelease();
-			}
-			Machine.processor().writeTLBEntry(i, new TranslationEntry());
+			if (!entry.valid)
+				continue;
+
+			if (entry.used)
+				savedTLBPages[hot++] = entry.vpn;
+			else
+				savedTLBPages[cold--] = entry.vpn;
+
+			pages.updateFromTLB(entry);
+			Machine.processor().writeTLBEntry(i, VMKernel.invalidTLBEntry);
 		}
 	}
 
@@ -51,7 +56,23 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		//super.restoreState();
+		/*
+		 * Prefill the TLB with up to tlbPrefill of the translations flushed
+		 * by saveState() whose pages are still resident, those used last
+		 * first, to save the misses that would load them again. Interrupts are
+		 * disabled, so no lock is needed.
+		 */
+		int tlbIndex = 0;
+		for (int i = 0; i < savedTLBPages.length && tlbIndex < tlbPrefill;
+				i++) {
+			int vpn = savedTLBPages[i];
+			if (vpn == -1 || (pages.get(vpn) & PageTable.valid) == 0)
+				continue;
+
+			pages.fillTranslationEntry(vpn, prefillEntry);
+			Machine.processor().writeTLBEntry(tlbIndex++, prefillEntry);
+		}
+		Machine.stats().numTLBPrefills += tlbIndex;
 	}
 
 	/**
@@ -61,14 +82,15 @@ public class VMProcess extends UserProcess {
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		pageTable = new TranslationEntry[numPages];
+		pages = new PageTable();
 
-		for (int vpn = 0; vpn < numPages; vpn++) {
-			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false,
-					false);
-		}
+		for (int vpn = 0; vpn < numPages; vpn++)
+			pages.set(vpn, PageTable.makeEntry(0, PageTable.mapped));
+		addressSpaceEnd = numPages;
 
-		// load sections
+		VMKernel.iptLockAcquire();
+		VMKernel.processes.add(this);
+		VMKernel.iptLockRelease();
 
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
@@ -76,12 +98,10 @@ public class VMProcess extends UserProcess {
 			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 					+ " section (" + section.getLength() + " pages)");
 
-			for (int i = 0; i < section.getLength(); i++) {
-				int vpn = section.getFirstVPN() + i;
-
-				pageTable[vpn].readOnly = section.isReadOnly();
-             			pageTable[vpn].vpn = s;
-
+			if (section.isReadOnly()) {
+				for (int i = 0; i < section.getLength(); i++)
+					pages.setFlags(section.getFirstVPN() + i,
+							PageTable.readOnly);
 			}
 		}
 
@@ -92,16 +112,68 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
-		// check if entry is dirty
-		// free up the swap space upon swapping the page into memory
-                VMKernel.freeSwapPagesLockAcquire();
-                for( int index =0 ;index < VMKernel.freeSwapPages.size(); index++)
-                {
-                   if (	VMKernel.freeSwapPages.get(index).getProcessID()== processID())
-                      VMKernel.freeSwapPages.get(index).setOccupied(false);
-                }
-                VMKernel.freeSwapPagesLockRelease();
+		// detach shared segments first so their frames are not freed below
+		for (Integer firstVPN : new ArrayList<Integer>(sharedAttachments.keySet()))
+			detachSegment(firstVPN.intValue(), sharedAttachments.remove(firstVPN));
+		reclaimOrphanedSegments();
+
+		VMKernel.iptLockAcquire();
+
+		exiting = true;
+		VMKernel.waitForPageIns(this);
+
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++)
+			Machine.processor().writeTLBEntry(i, VMKernel.invalidTLBEntry);
+
+		for (int vpn = pages.nextMapped(0); vpn != -1; vpn = pages
+				.nextMapped(vpn + 1)) {
+			int entry = pages.get(vpn);
+			int number = PageTable.getNumber(entry);
+
+			if ((entry & PageTable.valid) != 0) {
+				if (number == VMKernel.zeroPage) {
+					pages.set(vpn, 0);
+					continue;
+				}
+
+				if ((entry & PageTable.merged) != 0) {
+					VMKernel.unmapMergedFrame(this, number);
+					pages.set(vpn, 0);
+					continue;
+				}
+
+				if ((entry & PageTable.prefetched) != 0)
+					Machine.stats().numPrefetchesWasted++;
+
+				// the swap writer frees the frame instead of writing it
+				if (VMKernel.ipt[number].getWriteBackIndex() != -1) {
+					VMKernel.discardWriteBack(number);
+					pages.set(vpn, 0);
+					continue;
+				}
+
+				if (image.isSharedPage(vpn, number)) {
+					PageTableEntryInfo frame = VMKernel.ipt[number];
+					frame.removeMapper(this);
+					frame.setRefCount(frame.getRefCount() - 1);
+				}
+
+				if (image.releaseSharedPage(vpn, number)) {
+					VMKernel.replacementPolicy.pageFreed(number);
+					VMKernel.ipt[number].setOwner(null, 0);
+					UserKernel.frameAllocator.free(number);
+				}
+			}
+			else if ((entry & PageTable.swapped) != 0) {
+				VMKernel.freeSwapSpace(number);
+			}
+
+			pages.set(vpn, 0);
+		}
+
+		VMKernel.removeProcess(this);
+
+		VMKernel.iptLockRelease();
 	}
 
 	/**
@@ -119,6 +191,10 @@ public class VMProcess extends UserProcess {
 		case Processor.exceptionTLBMiss:
 			handleTLBMiss(virtualAddress);
 			break;
+		case Processor.exceptionReadOnly:
+			if (!handleCopyOnWrite(virtualAddress))
+				super.handleException(cause);
+			break;
 		default:
 			super.handleException(cause);
 			break;
@@ -127,65 +203,597 @@ public class VMProcess extends UserProcess {
 
 	private void handleTLBMiss(int virtualAddress) {
 		int vpn = Processor.pageFromAddress(virtualAddress);
-		TranslationEntry entry = pageTable[vpn];
 
 		/*
-		 * If we found that the entry recorded on the pageTable
-		 * is not valid, it is a page fault 
-		 * (vpn->ppn mapping recorded on pageTable is unusable).
-		 * Now we have to load the entry into memory by first
-		 * looking for it in swap space or CoffSection.
+		 * A resident page is mapped without the page table lock, with
+		 * interrupts disabled so that it cannot be evicted in between. A
+		 * thread holding the lock may be switched out part way through an
+		 * update, but a frame is only reused after every entry naming it is
+		 * invalidated, so a valid entry always names the page's frame. Waiting
+		 * for the lock here would switch this process out and flush the TLB,
+		 * and an instruction touching two pages might never find both
+		 * translations loaded at once.
+		 */
+		boolean intStatus = Machine.interrupt().disable();
+
+		int entry = pages.get(vpn);
+		if ((entry & (PageTable.valid | PageTable.prefetched))
+				== PageTable.valid) {
+			Machine.processor().writeTLBEntry(allocateTLBEntry(),
+					pages.getTranslationEntry(vpn));
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		/*
+		 * Otherwise the page table lock is held until the translation is in
+		 * the TLB, so the page cannot be evicted in between.
 		 */
-		 
-		if (!entry.valid) {
-			entry = handlePageFault(entry, vpn);
+		VMKernel.iptLockAcquire();
+
+		entry = pages.get(vpn);
+		if (entry == 0) {
+			VMKernel.iptLockRelease();
+			super.handleException(Processor.exceptionAddressError);
+			return;
 		}
+
+		/*
+		 * If the page is not resident, it is a page fault. Now we have to
+		 * load it into memory from swap space or the COFF file.
+		 */
+		if ((entry & PageTable.valid) == 0) {
+			// a suspended process may not compete for frames until resumed
+			while (suspended)
+				VMKernel.iptWait(VMKernel.processResumed);
+
+			while ((pages.get(vpn) & PageTable.valid) == 0)
+				handlePageFault(vpn);
+		}
+		else if ((entry & PageTable.prefetched) != 0) {
+			prefetchHit(vpn);
+		}
+
 		int tlbIndex = allocateTLBEntry();
-		updateTLBEntry(tlbIndex, entry, vpn);
-	}
-	
-	private TranslationEntry handlePageFault(TranslationEntry entry, int vpn) {
-		int ppn = allocatePhysicalPage(entry);
-		entry.ppn = ppn;
-		VMKernel.pinPage(ppn);
-		if (entry.dirty) { // swap in
-			int index = entry.vpn;	// index at the freeSwapSpace LinkedList
-			VMKernel.swapFile.read(index * pageSize, Machine.processor()
-					.getMemory(), entry.ppn * pageSize, pageSize);
-
-		} else {
-                        if (entry.vpn < coff.getNumSections())
-			{ // entry.vpn is section number
-			  CoffSection section = coff.getSection(entry.vpn);
-			  section.loadPage((vpn - section.getFirstVPN()), ppn);
-                        }
-                        else
-                        {
-		          //initialize stack frame in the first time
-                           byte[] nullPage = new byte[pageSize];
-                           for (int i =0 ; i< pageSize; i++)
-                           {
-                              nullPage[i]=0;
-                           }
-                           System.arraycopy(nullPage, 0,  Machine.processor()
-					.getMemory(), entry.ppn*pageSize, pageSize);
-                           
-                        }
-		}			
-		VMKernel.unpinPage(ppn);
-		entry.valid = true;
-		// sync page table and inverted page table
-		pageTable[vpn] = entry;
-		UserKernel.memoryLockAcquire();
+		Machine.processor().writeTLBEntry(tlbIndex,
+				pages.getTranslationEntry(vpn));
+
+		VMKernel.iptLockRelease();
+	}
+
+	/**
+	 * Return the physical page holding the specified virtual page, loading
+	 * it first if it is not resident. The page stays resident until
+	 * <tt>unpinVirtualPage()</tt> is called, so kernel threads other than the
+	 * process itself may use it as well.
+	 */
+	protected int pinVirtualPage(int vpn, boolean isUserWrite) {
+		if (vpn < 0 || vpn >= Processor.maxPages)
+			return -1;
+
+		VMKernel.iptLockAcquire();
+
+		int entry = pages.get(vpn);
+		if (entry == 0
+				|| (isUserWrite && (entry & PageTable.readOnly) != 0)) {
+			VMKernel.iptLockRelease();
+			return -1;
+		}
+
+		if ((entry & PageTable.valid) == 0) {
+			while ((pages.get(vpn) & PageTable.valid) == 0)
+				handlePageFault(vpn);
+		}
+		else if ((entry & PageTable.prefetched) != 0) {
+			prefetchHit(vpn);
+		}
+
+		if (isUserWrite && (pages.get(vpn) & PageTable.zeroFill) != 0)
+			copyZeroPage(vpn);
+
+		// a merged frame is unmapped on any write, so it is never pinned
+		if ((pages.get(vpn) & PageTable.merged) != 0)
+			copyMergedPage(vpn);
+
+		pages.setFlags(vpn, PageTable.used | PageTable.referenced
+				| (isUserWrite ? PageTable.dirty : 0));
+
+		int ppn = PageTable.getNumber(pages.get(vpn));
+
+		/*
+		 * The zero frame is pinned for good. Pinning it here would leave
+		 * unpinVirtualPage() unable to tell it from the frame the page gets
+		 * if another thread writes it in the meantime.
+		 */
+		if (ppn == VMKernel.zeroPage)
+			zeroPagePins.add(new Integer(vpn));
+		else
+			VMKernel.pinPage(ppn);
+
+		VMKernel.iptLockRelease();
+		return ppn;
+	}
+
+	protected void unpinVirtualPage(int vpn) {
+		VMKernel.iptLockAcquire();
+
+		if (!zeroPagePins.remove(new Integer(vpn)))
+			VMKernel.unpinPage(PageTable.getNumber(pages.get(vpn)));
+
+		VMKernel.iptLockRelease();
+	}
+
+	/**
+	 * Bring a non-resident page into memory, from swap if it was written out
+	 * and from the COFF file if it belongs to an initialized section. Other
+	 * pages map the shared zero frame until they are written. The caller
+	 * must hold the page table lock, which is given up while the page is
+	 * read, so that other threads can fault and read pages meanwhile. A
+	 * thread faulting on a page already being read waits for that read. The
+	 * page may be evicted again before the caller runs, so the caller
+	 * repeats the fault until the page is resident.
+	 */
+	private void handlePageFault(int vpn) {
+		Machine.stats().numPageFaults++;
+
+		int state = VMKernel.getPageState(pages.get(vpn));
+		if (state == VMKernel.pageReading) {
+			Machine.stats().numInFlightWaits++;
+			VMKernel.waitForPageIn(PageTable.getNumber(pages.get(vpn)));
+			return;
+		}
+
+		numRecentFaults++;
+		detectStride(vpn);
+
+		if ((pages.get(vpn) & PageTable.readOnly) != 0) {
+			int sharedPPN = image.mapSharedPage(vpn);
+			if (sharedPPN != -1) {
+				mapSharedTextPage(vpn, sharedPPN);
+				return;
+			}
+		}
+
+		// stack and BSS pages share the zero frame until they are written
+		if (state == VMKernel.pageUnloaded) {
+			CoffSection section = findSection(vpn);
+			if (section == null || !section.isInitialzed()) {
+				pages.set(vpn, PageTable.makeEntry(VMKernel.zeroPage,
+						PageTable.mapped | PageTable.valid | PageTable.used
+								| PageTable.referenced | PageTable.zeroFill));
+				Machine.stats().numZeroPageMappings++;
+				return;
+			}
+		}
+
+		// at its limit, a process replaces its own pages when memory is short
+		if (numResident >= residentLimit
+				&& UserKernel.frameAllocator.getNumFree()
+						<= VMKernel.freeFramesLow && VMKernel.evictPage(this))
+			Machine.stats().numLocalEvictions++;
+
+		int ppn = allocatePhysicalPage();
+
+		// the lock may have been given up while waiting for a free frame
+		int entry = pages.get(vpn);
+		if ((entry & (PageTable.valid | PageTable.inFlight)) != 0) {
+			UserKernel.frameAllocator.free(ppn);
+			return;
+		}
+
+		int flags = entry & (PageTable.mapped | PageTable.readOnly);
+		boolean fromSwap = (entry & PageTable.swapped) != 0;
+
+		VMKernel.ipt[ppn].setOwner(this, vpn);
+		VMKernel.startPageIn(ppn);
+		pages.set(vpn, PageTable.makeEntry(ppn, flags | PageTable.inFlight));
+
+		if (fromSwap) {
+			swapIn(vpn, PageTable.getNumber(entry), ppn);
+
+			// the only copy of the page is in memory now
+			flags |= PageTable.dirty;
+		}
+		else {
+			loadSectionPage(vpn, ppn, true);
+		}
+
+		// let later runs of this program map the text page just read
+		if (!fromSwap && (entry & PageTable.readOnly) != 0
+				&& image.publishSharedPage(vpn, ppn)) {
+			VMKernel.ipt[ppn].setShared(image, vpn);
+			mapSharedTextPage(vpn, ppn);
+			VMKernel.replacementPolicy.pageLoaded(ppn);
+			VMKernel.finishPageIn(ppn);
+			return;
+		}
+
+		// the faulting access is about to use the page
+		pages.set(vpn, PageTable.makeEntry(ppn, flags | PageTable.valid
+				| PageTable.used | PageTable.referenced));
+		VMKernel.replacementPolicy.pageLoaded(ppn);
+		VMKernel.finishPageIn(ppn);
+	}
+
+	/**
+	 * Read a page of an initialized COFF section into the specified frame,
+	 * already marked as being read into. With fault-around, the other pages
+	 * of the aligned block of <tt>faultAround</tt> pages holding it that lie
+	 * in the same section and were never loaded are read too, while free
+	 * frames beyond the pageout thread's low watermark allow; text pages
+	 * another process has loaded are just mapped. The extra pages are mapped
+	 * as resident but not yet used, so the replacement policy sees them as
+	 * the first to go if they stay untouched. The caller must hold the page
+	 * table lock, which is given up during the reads.
+	 */
+	private void loadSectionPage(int vpn, int ppn, boolean faultAround) {
+		CoffSection section = findSection(vpn);
+		int sectionEnd = section.getFirstVPN() + section.getLength();
+
+		int[] around = new int[faultAround ? faultAroundPages : 0];
+		int count = 0;
+
+		int start = Math.max(section.getFirstVPN(), vpn - vpn
+				% faultAroundPages);
+		int end = Math.min(sectionEnd, start + faultAroundPages);
+		for (int i = start; i < end && faultAround; i++) {
+			if (UserKernel.frameAllocator.getNumFree() <= VMKernel.freeFramesLow)
+				break;
+
+			int entry = pages.get(i);
+			if (i == vpn
+					|| VMKernel.getPageState(entry) != VMKernel.pageUnloaded)
+				continue;
+
+			if ((entry & PageTable.readOnly) != 0) {
+				int sharedPPN = image.mapSharedPage(i);
+				if (sharedPPN != -1) {
+					mapSharedTextPage(i, sharedPPN);
+					continue;
+				}
+			}
+
+			int aroundPPN = UserKernel.frameAllocator.allocate();
+			if (aroundPPN == -1)
+				break;
+
+			VMKernel.ipt[aroundPPN].setOwner(this, i);
+			VMKernel.startPageIn(aroundPPN);
+			pages.set(i, PageTable.makeEntry(aroundPPN, (entry
+					& (PageTable.mapped | PageTable.readOnly))
+					| PageTable.inFlight));
+			around[count++] = i;
+		}
+
+		int depth = VMKernel.iptLockReleaseAll();
+		section.loadPage(vpn - section.getFirstVPN(), ppn);
+		for (int i = 0; i < count; i++)
+			section.loadPage(around[i] - section.getFirstVPN(), PageTable
+					.getNumber(pages.get(around[i])));
+		VMKernel.iptLockReacquire(depth);
+
+		for (int i = 0; i < count; i++) {
+			int entry = pages.get(around[i]);
+			int aroundPPN = PageTable.getNumber(entry);
+
+			if ((entry & PageTable.readOnly) != 0
+					&& image.publishSharedPage(around[i], aroundPPN)) {
+				VMKernel.ipt[aroundPPN].setShared(image, around[i]);
+				mapSharedTextPage(around[i], aroundPPN);
+			}
+			else {
+				pages.set(around[i], PageTable.makeEntry(aroundPPN, (entry
+						& (PageTable.mapped | PageTable.readOnly))
+						| PageTable.valid));
+			}
+
+			VMKernel.replacementPolicy.pageLoaded(aroundPPN);
+			VMKernel.finishPageIn(aroundPPN);
+			Machine.stats().numFaultAroundPages++;
+		}
+	}
+
+	/**
+	 * Read a page back from swap into the specified frame, already marked as
+	 * being read into, and free its swap slot. A page in the swap cache is
+	 * simply decompressed. Otherwise the following pages of this process are
+	 * read from the swap file in the same request while they were written to
+	 * the following slots, which is how a cluster of neighbouring pages is
+	 * written, they are not in the swap cache, and free frames are at hand;
+	 * they are marked as being read too, and then mapped as resident but not
+	 * yet used. The caller must hold the page table lock, which is given up
+	 * during the read.
+	 */
+	private void swapIn(int vpn, int index, int ppn) {
+		byte[] memory = Machine.processor().getMemory();
+
+		int depth = VMKernel.iptLockReleaseAll();
+		boolean cached = VMKernel.swapCache.read(index, memory, ppn * pageSize);
+		VMKernel.iptLockReacquire(depth);
+
+		if (cached) {
+			Machine.stats().numSwapCacheHits++;
+			VMKernel.freeSwapSpace(index);
+			return;
+		}
+		Machine.stats().numSwapCacheMisses++;
+
+		int[] frames = new int[maxSwapReadAhead + 1];
+		frames[0] = ppn;
+
+		int count = 1;
+		while (count < frames.length) {
+			int entry = pages.get(vpn + count);
+			if ((entry & PageTable.swapped) == 0
+					|| PageTable.getNumber(entry) != index + count
+					|| VMKernel.swapCache.contains(index + count))
+				break;
+
+			// read-ahead never evicts a page
+			frames[count] = UserKernel.frameAllocator.allocate();
+			if (frames[count] == -1)
+				break;
+
+			VMKernel.ipt[frames[count]].setOwner(this, vpn + count);
+			VMKernel.startPageIn(frames[count]);
+			pages.set(vpn + count, PageTable.makeEntry(frames[count], (entry
+					& (PageTable.mapped | PageTable.readOnly))
+					| PageTable.inFlight));
+			count++;
+		}
+
+		byte[] data = new byte[count * pageSize];
+
+		depth = VMKernel.iptLockReleaseAll();
+		VMKernel.swapSpace.read(index, data, 0, count);
+		VMKernel.iptLockReacquire(depth);
+
+		for (int i = 0; i < count; i++)
+			System.arraycopy(data, i * pageSize, memory, frames[i] * pageSize,
+					pageSize);
+
+		Machine.stats().numSwapReads++;
+		Machine.stats().numSwapPagesRead += count;
+
+		for (int i = 1; i < count; i++) {
+			int flags = pages.get(vpn + i)
+					& (PageTable.mapped | PageTable.readOnly);
+
+			pages.set(vpn + i, PageTable.makeEntry(frames[i], flags
+					| PageTable.valid | PageTable.dirty
+					| PageTable.prefetched));
+			Machine.stats().numPrefetchedPages++;
+			VMKernel.replacementPolicy.pageLoaded(frames[i]);
+			VMKernel.freeSwapSpace(index + i);
+			VMKernel.finishPageIn(frames[i]);
+		}
+
+		VMKernel.freeSwapSpace(index);
+	}
+
+	/**
+	 * Watch the stream of faulting pages for a constant stride, as left by a
+	 * loop walking an array forwards or backwards. Once two faults in a row
+	 * are the same distance apart, the prefetch thread is asked to read the
+	 * next <tt>prefetchWindow</tt> pages along the stride. A reference to a
+	 * prefetched page counts as a fault here, so the stream goes on. The
+	 * caller must hold the page table lock.
+	 */
+	private void detectStride(int vpn) {
+		int stride = vpn - lastFaultVPN;
+
+		if (stride != 0 && stride == lastStride
+				&& Math.abs(stride) <= maxPrefetchStride && maxPrefetch > 0) {
+			final int first = vpn + stride, step = stride;
+			final int count = prefetchWindow;
+
+			VMKernel.prefetchQueue.add(new Runnable() {
+				public void run() {
+					prefetch(first, step, count);
+				}
+			});
+		}
+
+		lastStride = stride;
+		lastFaultVPN = vpn;
+	}
+
+	/**
+	 * Note that a prefetched page has been referenced, widening the prefetch
+	 * window. The caller must hold the page table lock.
+	 */
+	private void prefetchHit(int vpn) {
+		pages.clearFlags(vpn, PageTable.prefetched);
+		Machine.stats().numPrefetchHits++;
+
+		prefetchWindow = Math.min(maxPrefetch, prefetchWindow + 1);
+		detectStride(vpn);
+	}
+
+	/**
+	 * Read in pages along a stride ahead of any reference to them. Only pages
+	 * held in the COFF file or in swap are read, since a zero-filled page
+	 * only maps the zero frame, and only into frames that are free beyond the
+	 * pageout thread's low watermark; prefetching never evicts a page, nor
+	 * takes a suspended process or one at its resident-set limit any
+	 * further. Called by the prefetch thread.
+	 */
+	private void prefetch(int first, int stride, int count) {
 		VMKernel.iptLockAcquire();
-		VMKernel.ipt[entry.ppn].setProcessID(processID());
-		TranslationEntry entryForIpt = new TranslationEntry(vpn, entry.ppn, 
-				entry.valid, entry.readOnly, entry.used, entry.dirty);
-		// same reason as above
-		VMKernel.ipt[entry.ppn].setEntry(entryForIpt);
+
+		for (int i = 0, vpn = first; i < count; i++, vpn += stride) {
+			if (vpn < 0 || vpn >= Processor.maxPages || suspended
+					|| numResident >= residentLimit
+					|| UserKernel.frameAllocator.getNumFree()
+							<= VMKernel.freeFramesLow)
+				break;
+
+			int entry = pages.get(vpn);
+			if (entry == 0
+					|| (entry & (PageTable.valid | PageTable.readOnly
+							| PageTable.inFlight)) != 0)
+				continue;
+
+			boolean fromSwap = (entry & PageTable.swapped) != 0;
+			CoffSection section = fromSwap ? null : findSection(vpn);
+			if (!fromSwap && (section == null || !section.isInitialzed()))
+				continue;
+
+			int ppn = UserKernel.frameAllocator.allocate();
+			if (ppn == -1)
+				break;
+
+			int flags = entry & PageTable.mapped;
+
+			VMKernel.ipt[ppn].setOwner(this, vpn);
+			VMKernel.startPageIn(ppn);
+			pages.set(vpn, PageTable.makeEntry(ppn, flags | PageTable.inFlight));
+
+			if (fromSwap) {
+				swapIn(vpn, PageTable.getNumber(entry), ppn);
+				flags |= PageTable.dirty;
+			}
+			else {
+				loadSectionPage(vpn, ppn, false);
+			}
+
+			pages.set(vpn, PageTable.makeEntry(ppn, flags | PageTable.valid
+					| PageTable.prefetched));
+			VMKernel.replacementPolicy.pageLoaded(ppn);
+			VMKernel.finishPageIn(ppn);
+			Machine.stats().numPrefetchedPages++;
+		}
+
 		VMKernel.iptLockRelease();
-		UserKernel.memoryLockRelease();
-		return entry;
+	}
+
+	/**
+	 * Handle a write to a read-only page. If the page maps the zero frame or
+	 * a merged frame, give it a frame of its own so the write can be
+	 * retried.
+	 *
+	 * @param virtualAddress the address written.
+	 * @return <tt>true</tt> if the page was shared, or <tt>false</tt> if the
+	 * write was to a page that is truly read-only.
+	 */
+	private boolean handleCopyOnWrite(int virtualAddress) {
+		int vpn = Processor.pageFromAddress(virtualAddress);
+
+		VMKernel.iptLockAcquire();
+
+		int entry = pages.get(vpn);
+		boolean shared = (entry & (PageTable.zeroFill | PageTable.merged)) != 0;
+		if ((entry & PageTable.zeroFill) != 0)
+			copyZeroPage(vpn);
+		else if ((entry & PageTable.merged) != 0)
+			copyMergedPage(vpn);
+
+		VMKernel.iptLockRelease();
+		return shared;
+	}
+
+	/**
+	 * Give a page mapping the zero frame a zero-filled frame of its own,
+	 * mapped writable, and replace any read-only translation of it in the
+	 * TLB. The caller must hold the page table lock.
+	 */
+	private void copyZeroPage(int vpn) {
+		int ppn = allocatePhysicalPage();
+
+		// the lock may have been given up while waiting for a free frame
+		int entry = pages.get(vpn);
+		if ((entry & PageTable.zeroFill) == 0) {
+			UserKernel.frameAllocator.free(ppn);
+			return;
+		}
+
+		Arrays.fill(Machine.processor().getMemory(), ppn * pageSize,
+				(ppn + 1) * pageSize, (byte) 0);
+
+		VMKernel.ipt[ppn].setOwner(this, vpn);
+		pages.set(vpn, PageTable.makeEntry(ppn, PageTable.mapped
+				| PageTable.valid | PageTable.used | PageTable.referenced
+				| PageTable.dirty));
+		VMKernel.replacementPolicy.pageLoaded(ppn);
+		Machine.stats().numZeroPageCopies++;
+
+		replaceTLBEntry(vpn, VMKernel.zeroPage);
+	}
+
+	/**
+	 * Give a page mapping a merged frame a copy of it of its own, mapped
+	 * writable, and drop its reference to the merged frame. The caller must
+	 * hold the page table lock.
+	 */
+	private void copyMergedPage(int vpn) {
+		int ppn = allocatePhysicalPage();
+
+		// the lock may have been given up while waiting for a free frame
+		int entry = pages.get(vpn);
+		if ((entry & PageTable.merged) == 0) {
+			UserKernel.frameAllocator.free(ppn);
+			return;
+		}
+
+		int mergedPPN = PageTable.getNumber(entry);
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, mergedPPN * pageSize, memory, ppn * pageSize,
+				pageSize);
+
+		VMKernel.ipt[ppn].setOwner(this, vpn);
+		pages.set(vpn, PageTable.makeEntry(ppn, PageTable.mapped
+				| PageTable.valid | PageTable.used | PageTable.referenced
+				| PageTable.dirty));
+		VMKernel.replacementPolicy.pageLoaded(ppn);
+		VMKernel.unmapMergedFrame(this, mergedPPN);
+		Machine.stats().numMergedPageCopies++;
+
+		replaceTLBEntry(vpn, mergedPPN);
+	}
+
+	/**
+	 * Replace a read-only translation of a page to a shared frame with one
+	 * to the page's own frame, if the TLB holds one.
+	 */
+	private void replaceTLBEntry(int vpn, int sharedPPN) {
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+			TranslationEntry translation = Machine.processor().readTLBEntry(i);
+			if (translation.valid && translation.vpn == vpn
+					&& translation.ppn == sharedPPN)
+				Machine.processor().writeTLBEntry(i,
+						pages.getTranslationEntry(vpn));
+		}
+	}
+
+	/**
+	 * Map a frame holding a read-only page of the executable that is shared
+	 * with other processes running the same program. The caller already holds
+	 * a reference to the frame through <tt>image</tt>.
+	 */
+	private void mapSharedTextPage(int vpn, int ppn) {
+		pages.set(vpn, PageTable.makeEntry(ppn, PageTable.mapped
+				| PageTable.valid | PageTable.readOnly | PageTable.used));
+
+		PageTableEntryInfo frame = VMKernel.ipt[ppn];
+		frame.addMapper(this);
+		frame.setRefCount(frame.getRefCount() + 1);
+	}
+
+	/**
+	 * Return the COFF section containing the specified page, or
+	 * <tt>null</tt> if the page is part of the stack or arguments.
+	 */
+	private CoffSection findSection(int vpn) {
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (vpn >= section.getFirstVPN()
+					&& vpn < section.getFirstVPN() + section.getLength())
+				return section;
+		}
+
+		return null;
 	}
 
 	/** 
@@ -193,134 +801,460 @@ public class VMProcess extends UserProcess {
 	 * that is ready to be loaded from swap space or CoffSection.
 	 * 
 	 * To do so, we first try to find an invalid TLB entry to evict,
-	 * but if all entries are valid, we randomly pick a victim
-	 * for eviction.
+	 * but if all entries are valid, a clock hand sweeps the entries,
+	 * clearing used bits, until it finds one not used since the last
+	 * sweep.
 	 *
 	 * @return the index of the newly allocated space on the TLB array.
 	 **/
 	private int allocateTLBEntry() {
+		int tlbSize = Machine.processor().getTLBSize();
+
 		// try to find an invalid TLB entry to evict
-		VMKernel.tlbLockAcquire();
-		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
-			if (!Machine.processor().readTLBEntry(i).valid) {
-				VMKernel.tlbLockRelease();
+		for (int i = 0; i < tlbSize; i++) {
+			if (!Machine.processor().readTLBEntry(i).valid)
 				return i;
-			}
 		}
-		VMKernel.tlbLockRelease();
-		// all entries are valid, randomly evict a victim
-		int victimIndex = Lib.random(Machine.processor().getTLBSize());
-		TranslationEntry victim = Machine.processor().readTLBEntry(victimIndex);
-		victim.valid = false;
-		// sync invalidated victim entry back to TLB
-		VMKernel.tlbLockAcquire();
-		Machine.processor().writeTLBEntry(victimIndex, victim);
-		VMKernel.tlbLockRelease();
-		int correctVpn = VMKernel.ipt[victim.ppn].getEntry().vpn;
-		// sync entry with page table
-		pageTable[correctVpn] = new TranslationEntry(pageTable[victim.vpn].vpn,
-				victim.ppn, victim.valid, victim.readOnly, victim.used,
-				victim.dirty);
-		// sync victim entry with ipt, keeping vpn the one that causes the page fault
-		UserKernel.memoryLockAcquire();
-                
-		victim.vpn = correctVpn;
+
+		// every entry is found unused by the second time round
+		while (true) {
+			int i = tlbHand;
+			tlbHand = (tlbHand + 1) % tlbSize;
+
+			TranslationEntry entry = Machine.processor().readTLBEntry(i);
+			// sync entry with page table before its used bit is lost
+			pages.updateFromTLB(entry);
+			if (!entry.used)
+				return i;
+
+			entry.used = false;
+			Machine.processor().writeTLBEntry(i, entry);
+		}
+	}
+
+	/**
+	 * Allocate a physical page, evicting a resident page if none is free. The
+	 * caller must hold the page table lock.
+	 */
+	private int allocatePhysicalPage() {
+		int ppn = UserKernel.frameAllocator.allocate();
+		if (ppn == -1)
+			Machine.stats().numDirectReclaims++;
+
+		// a clean cached file page is cheaper to give up than a user page
+		if (ppn == -1 && UserKernel.pageCache != null)
+			ppn = UserKernel.pageCache.reclaimFrame();
+
+		while (ppn == -1) {
+			Lib.assertTrue(VMKernel.evictPage(),
+					"every frame is pinned or swap space is full");
+			ppn = UserKernel.frameAllocator.allocate();
+		}
+
+		VMKernel.checkFreeFrames();
+		return ppn;
+	}
+
+	/**
+	 * Adjust the resident-set limit of this process from its page fault
+	 * frequency since the last sample: a process faulting often may hold one
+	 * more frame for every fault, and a process faulting rarely gives up half
+	 * of the frames its limit allows beyond its working set. The caller must
+	 * hold the page table lock.
+	 *
+	 * @param numPhysPages the number of frames in memory.
+	 */
+	void updateResidentLimit(int numPhysPages) {
+		if (numRecentFaults > faultRateHigh)
+			residentLimit += numRecentFaults;
+		else if (numRecentFaults < faultRateLow
+				&& residentLimit > workingSetSize)
+			residentLimit -= (residentLimit - workingSetSize) / 2;
+
+		residentLimit = Math.max(minResidentPages, Math.min(numPhysPages,
+				residentLimit));
+		numRecentFaults = 0;
+	}
+
+	/**
+	 * Evict a resident page of this process. The caller must hold the page
+	 * table lock, and must already have written the page to swap if it is
+	 * dirty.
+	 *
+	 * @param vpn the virtual page to evict.
+	 * @param swapIndex the swap page holding its contents, or -1 if the page
+	 * is clean and can be read again from the COFF file or zero-filled.
+	 */
+	void evictPage(int vpn, int swapIndex) {
+		int entry = pages.get(vpn);
+		int ppn = PageTable.getNumber(entry);
+
+		// the translation may still be cached if this process is running
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+			TranslationEntry translation = Machine.processor().readTLBEntry(i);
+			if (translation.valid && translation.ppn == ppn)
+				Machine.processor().writeTLBEntry(i, VMKernel.invalidTLBEntry);
+		}
+
+		VMKernel.replacementPolicy.pageEvicted(ppn);
+		Machine.stats().numPageEvictions++;
+
+		if ((entry & PageTable.prefetched) != 0) {
+			Machine.stats().numPrefetchesWasted++;
+			prefetchWindow = Math.max(1, prefetchWindow / 2);
+		}
+
+		int flags = entry & (PageTable.mapped | PageTable.readOnly);
+		if (swapIndex != -1)
+			pages.set(vpn, PageTable.makeEntry(swapIndex, flags
+					| PageTable.swapped));
+		else
+			pages.set(vpn, PageTable.makeEntry(0, flags));
+
+		VMKernel.ipt[ppn].setOwner(null, 0);
+		UserKernel.frameAllocator.free(ppn);
+	}
+
+	/**
+	 * Handle the shmget() system call. Returns the identifier of the shared
+	 * segment with the specified key, creating it with at least <i>size</i>
+	 * bytes of zero-filled memory if it does not already exist. A new
+	 * segment is refused if the frames of all segments together would exceed
+	 * <tt>VMKernel.maxSharedSegmentPages</tt>.
+	 */
+	private int handleShmget(int key, int size) {
+		if (key < 0 || size <= 0)
+			return -1;
+
+		int length = Lib.divRoundUp(size, pageSize);
+
+		VMKernel.sharedSegmentsLock.acquire();
+
+		SharedSegment segment = VMKernel.sharedSegments.get(new Integer(key));
+		if (segment != null) {
+			VMKernel.sharedSegmentsLock.release();
+			return segment.getLength() >= length ? key : -1;
+		}
+
+		// segment frames are pinned, so too many would leave none to page
+		if (length > VMKernel.maxSharedSegmentPages
+				- VMKernel.numSharedSegmentPages) {
+			VMKernel.sharedSegmentsLock.release();
+			return -1;
+		}
+		VMKernel.numSharedSegmentPages += length;
+
+		byte[] memory = Machine.processor().getMemory();
+		int[] ppns = new int[length];
+		for (int i = 0; i < length; i++) {
+			VMKernel.iptLockAcquire();
+			ppns[i] = allocatePhysicalPage();
+			// the segment holds a pin on its frames until it is destroyed
+			VMKernel.pinPage(ppns[i]);
+			VMKernel.ipt[ppns[i]].setOwner(null, 0);
+			VMKernel.iptLockRelease();
+			Arrays.fill(memory, ppns[i] * pageSize, (ppns[i] + 1) * pageSize,
+					(byte) 0);
+		}
+
+		segment = new SharedSegment(key, processID(), ppns);
+		VMKernel.sharedSegments.put(new Integer(key), segment);
+
+		VMKernel.sharedSegmentsLock.release();
+
+		Lib.debug(dbgVM, "shmget: created segment " + key + " (" + length
+				+ " pages)");
+		return key;
+	}
+
+	/**
+	 * Handle the shmat() system call. Maps every page of the shared segment
+	 * into this process, directly above the highest page currently in use,
+	 * and returns the virtual address of the first page. The segment must
+	 * end below <tt>userSegmentPages</tt>.
+	 */
+	private int handleShmat(int shmid) {
+		VMKernel.sharedSegmentsLock.acquire();
+
+		SharedSegment segment = VMKernel.sharedSegments.get(new Integer(shmid));
+		int firstVPN = addressSpaceEnd;
+		if (segment == null
+				|| firstVPN + segment.getLength() > userSegmentPages) {
+			VMKernel.sharedSegmentsLock.release();
+			return -1;
+		}
+
 		VMKernel.iptLockAcquire();
-		VMKernel.ipt[victim.ppn].setEntry(victim);
+		for (int i = 0; i < segment.getLength(); i++) {
+			int ppn = segment.getPPN(i);
+			pages.set(firstVPN + i, PageTable.makeEntry(ppn, PageTable.mapped
+					| PageTable.valid));
+			VMKernel.ipt[ppn].setRefCount(VMKernel.ipt[ppn].getRefCount() + 1);
+		}
 		VMKernel.iptLockRelease();
-		UserKernel.memoryLockRelease();
-		return victimIndex;
+
+		addressSpaceEnd = firstVPN + segment.getLength();
+		segment.attach();
+		sharedAttachments.put(new Integer(firstVPN), segment);
+
+		VMKernel.sharedSegmentsLock.release();
+
+		return Processor.makeAddress(firstVPN, 0);
+	}
+
+	/**
+	 * Handle the shmdt() system call. Unmaps the shared segment attached at
+	 * the specified virtual address.
+	 */
+	private int handleShmdt(int vaddr) {
+		if (Processor.offsetFromAddress(vaddr) != 0)
+			return -1;
+
+		Integer firstVPN = new Integer(Processor.pageFromAddress(vaddr));
+		SharedSegment segment = sharedAttachments.remove(firstVPN);
+		if (segment == null)
+			return -1;
+
+		detachSegment(firstVPN.intValue(), segment);
+		return 0;
 	}
-	
-	private void updateTLBEntry(int tlbIndex, TranslationEntry entry, int vpn) {
-		TranslationEntry newEntry = new TranslationEntry(vpn, entry.ppn, 
-				entry.valid, entry.readOnly, entry.used, entry.dirty);
+
+	/**
+	 * Unmap a shared segment from this process, destroying it if this was
+	 * the last process attached to it.
+	 */
+	private void detachSegment(int firstVPN, SharedSegment segment) {
+		VMKernel.sharedSegmentsLock.acquire();
+
+		// no stale translations may survive the unmap
 		VMKernel.tlbLockAcquire();
-		Machine.processor().writeTLBEntry(tlbIndex, newEntry);
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+			TranslationEntry entry = Machine.processor().readTLBEntry(i);
+			if (entry.valid && entry.vpn >= firstVPN
+					&& entry.vpn < firstVPN + segment.getLength())
+				Machine.processor().writeTLBEntry(i, VMKernel.invalidTLBEntry);
+		}
 		VMKernel.tlbLockRelease();
+
+		VMKernel.iptLockAcquire();
+		for (int i = 0; i < segment.getLength(); i++) {
+			int ppn = segment.getPPN(i);
+			pages.set(firstVPN + i, 0);
+			VMKernel.ipt[ppn].setRefCount(VMKernel.ipt[ppn].getRefCount() - 1);
+		}
+		VMKernel.iptLockRelease();
+
+		// give back the unused tail of the address space
+		while (addressSpaceEnd > numPages
+				&& pages.get(addressSpaceEnd - 1) == 0)
+			addressSpaceEnd--;
+
+		if (segment.detach() == 0)
+			destroySegment(segment);
+
+		VMKernel.sharedSegmentsLock.release();
 	}
 
-	private int allocatePhysicalPage(TranslationEntry entry) {
-		if (UserKernel.freePages.isEmpty() )
-                   clockAlgorithm();
-
-                UserKernel.memoryLockAcquire();
-                int tempPage = ((Integer) UserKernel.freePages.removeFirst()).intValue();
-                UserKernel.memoryLockRelease();
-
-                return tempPage;
-	}
-
-	private void clockAlgorithm() {
-		int clockHand = 0;
-		TranslationEntry victim = null;
-		while (UserKernel.freePages.isEmpty()) {
-			PageTableEntryInfo frame = VMKernel.ipt[clockHand];
-			if (frame.getPinCount() < 1) { // swap
-				if (frame.getEntry().used) {
-					frame.getEntry().used = false;
-				} else {
-					int index = 0;
-					victim = frame.getEntry();
-					/* write the page out to swap file if entry is dirty,
-					 * simply evict otherwise. 
-					 */
-					if (victim.dirty) { 
-						index = assignSwapSpace();
-						// write to swap file
-						VMKernel.freeSwapPagesLockAcquire();
-						VMKernel.swapFile.write(index * pageSize, 
-								Machine.processor().getMemory(),
-								victim.ppn * pageSize, pageSize);
-						VMKernel.freeSwapPagesLockRelease();
-					}
-					// begin eviction
-					UserKernel.memoryLockAcquire();
-					UserKernel.freePages.add(victim.ppn);
-					UserKernel.memoryLockRelease();
-					victim.valid = false; // invalidate PTE
-					
-					// sync pageTable entry
-					pageTable[victim.vpn].valid = false;
-					
-					// sync ipt entry, keeping vpn as the vpn that causes the page fault
-					UserKernel.memoryLockAcquire();
-					VMKernel.iptLockAcquire();
-					VMKernel.ipt[victim.ppn].setEntry(victim);
-					VMKernel.iptLockRelease();
-					UserKernel.memoryLockRelease();
-					
-				}
-			}
-			clockHand = (clockHand + 1) % Machine.processor().getNumPhysPages();
+	/**
+	 * Destroy segments this process created but that were never attached by
+	 * any process, so they do not outlive their creator.
+	 */
+	private void reclaimOrphanedSegments() {
+		VMKernel.sharedSegmentsLock.acquire();
+		for (SharedSegment segment : new ArrayList<SharedSegment>(
+				VMKernel.sharedSegments.values())) {
+			if (segment.getCreatorID() == processID()
+					&& segment.getAttachCount() == 0)
+				destroySegment(segment);
 		}
-		return;
+		VMKernel.sharedSegmentsLock.release();
 	}
 
-	private int assignSwapSpace() {
-                int swapIndex = 0;
-		VMKernel.freeSwapPagesLockAcquire();
-		for (int i = 0; i < VMKernel.freeSwapPages.size(); i++) {
-			// false means not in use
-			if (VMKernel.freeSwapPages.get(i).getOccupied() == false) {
-				VMKernel.freeSwapPages.get(i).setOccupied(true);
-                                VMKernel.freeSwapPages.get(i).setProcessID(processID);
-                                swapIndex = i;
-				return swapIndex;
-			}
+	/**
+	 * Remove a segment from the segment table and return its frames to the
+	 * frame allocator. The caller must hold <tt>sharedSegmentsLock</tt>.
+	 */
+	private void destroySegment(SharedSegment segment) {
+		VMKernel.sharedSegments.remove(new Integer(segment.getKey()));
+		VMKernel.numSharedSegmentPages -= segment.getLength();
+
+		for (int i = 0; i < segment.getLength(); i++) {
+			int ppn = segment.getPPN(i);
+			Lib.assertTrue(VMKernel.ipt[ppn].getRefCount() == 0);
+			VMKernel.unpinPage(ppn);
+			UserKernel.frameAllocator.free(ppn);
+		}
+
+		Lib.debug(dbgVM, "destroyed shared segment " + segment.getKey());
+	}
+
+	private static final int syscallShmget = 13, syscallShmat = 14,
+			syscallShmdt = 15;
+
+	/**
+	 * The number of pages below 0x80000000, where the MIPS kernel segments
+	 * begin. Shared segments are attached below that address, so every
+	 * address <tt>shmat()</tt> returns is a positive int, as user programs
+	 * expect of a pointer.
+	 */
+	private static final int userSegmentPages = Processor
+			.pageFromAddress(0x80000000);
+
+	/**
+	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+	 * <i>syscall</i> argument identifies which syscall the user executed:
+	 * 
+	 * <table>
+	 * <tr>
+	 * <td>syscall#</td>
+	 * <td>syscall prototype</td>
+	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  shmget(int key, int size);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>void *shmat(int shmid);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  shmdt(void *address);</tt></td>
+	 * </tr>
+	 * </table>
+	 * 
+	 * @param syscall the syscall number.
+	 * @param a0 the first syscall argument.
+	 * @param a1 the second syscall argument.
+	 * @param a2 the third syscall argument.
+	 * @param a3 the fourth syscall argument.
+	 * @return the value to be returned to the user.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallShmget:
+			return handleShmget(a0, a1);
+
+		case syscallShmat:
+			return handleShmat(a0);
+
+		case syscallShmdt:
+			return handleShmdt(a0);
+
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
 		}
-                
-		VMKernel.freeSwapPages.add(new VMKernel.indexAtFreeSwapPages(processID, true));
-                int SwapIndex = VMKernel.freeSwapPages.size() - 1;
-		VMKernel.freeSwapPagesLockRelease();
-		return swapIndex;
 	}
 
+	/** The page table of this process. */
+	protected PageTable pages;
+
+	/**
+	 * The virtual page in each TLB entry when this process was last switched
+	 * out, or -1 for an invalid entry.
+	 */
+	private int[] savedTLBPages = new int[Machine.processor().getTLBSize()];
+
+	/** The translation <tt>restoreState()</tt> fills in for each TLB slot. */
+	private TranslationEntry prefillEntry = new TranslationEntry();
+
+	/** The next TLB entry <tt>allocateTLBEntry()</tt> considers replacing. */
+	private int tlbHand = 0;
+
+	/**
+	 * One past the highest virtual page in use, including shared segments
+	 * attached above the executable image.
+	 */
+	private int addressSpaceEnd;
+
+	/**
+	 * The number of frames this process holds on its own, not counting
+	 * shared text pages or shared segments. Maintained by
+	 * <tt>VMKernel.PageTableEntryInfo.setOwner()</tt>.
+	 */
+	int numResident = 0;
+
+	/**
+	 * The number of frames this process may hold before it replaces its own
+	 * pages instead of taking free frames, when memory is short.
+	 */
+	int residentLimit = Math.max(minResidentPages, Machine.processor()
+			.getNumPhysPages() / 4);
+
+	/** The number of pages referenced in the last sampling interval. */
+	int workingSetSize = 0;
+
+	/** The number of page faults since the last sample. */
+	private int numRecentFaults = 0;
+
+	/** The page of the last fault, and its distance from the one before. */
+	private int lastFaultVPN = -1, lastStride = 0;
+
+	/** The number of pages to prefetch when a stride is detected. */
+	private int prefetchWindow = 1;
+
+	/**
+	 * Set while this process is kept from faulting pages in, because the
+	 * resident sets of all processes do not fit in memory.
+	 */
+	boolean suspended = false;
+
+	/**
+	 * Set once this process has begun to give back its pages, so that its
+	 * frames are no longer chosen for eviction. Guarded by <tt>iptLock</tt>.
+	 */
+	boolean exiting = false;
+
+	/**
+	 * Pages pinned by <tt>pinVirtualPage()</tt> while they mapped the zero
+	 * frame, once for every pin. Guarded by <tt>iptLock</tt>.
+	 */
+	private LinkedList<Integer> zeroPagePins = new LinkedList<Integer>();
+
+	/** Shared segments attached to this process, indexed by first VPN. */
+	private HashMap<Integer, SharedSegment> sharedAttachments = new HashMap<Integer, SharedSegment>();
+
 	private static final int pageSize = Processor.pageSize;
 
-	private static final char dbgProcess = 'a';
+	/**
+	 * The most translations reloaded into the TLB when this process is
+	 * switched in, or 0 for none. Each one fewer costs TLB misses after every
+	 * switch.
+	 */
+	private static final int tlbPrefill = Config.getInteger(
+			"VMProcess.tlbPrefill", Machine.processor().getTLBSize());
 
-	private static final char dbgVM = 'v';
+	/**
+	 * The size, in pages, of the aligned block of a COFF section read in
+	 * when any page of it faults, or 1 to read only the faulting page.
+	 */
+	private static final int faultAroundPages = Math.max(1, Config.getInteger(
+			"VMProcess.faultAround", 4));
+
+	/** The most pages read from swap after the faulting one in one request. */
+	private static final int maxSwapReadAhead = Config.getInteger(
+			"VMProcess.swapReadAhead", 3);
 
+	/** The most pages prefetched at once, or 0 to never prefetch. */
+	private static final int maxPrefetch = Config.getInteger(
+			"VMProcess.maxPrefetch", 4);
 
+	/** The widest stride, in pages, for which pages are prefetched. */
+	private static final int maxPrefetchStride = 4;
+
+	/** The fewest frames a resident-set limit allows. */
+	private static final int minResidentPages = 4;
+
+	/**
+	 * The page faults per sampling interval above which the resident-set
+	 * limit grows, and below which it shrinks toward the working set.
+	 */
+	private static final int faultRateHigh = Config.getInteger(
+			"VMProcess.faultRateHigh", 8);
+	private static final int faultRateLow = Config.getInteger(
+			"VMProcess.faultRateLow", 2);
+
+	private static final char dbgProcess = 'a';
+
+	private static final char dbgVM = 'v';
 }
@@ -0,0 +1,82 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * The WSClock algorithm, and the default policy. The hand sweeps the frames
+ * in order and keeps its position across evictions. A referenced frame has
+ * its used bits cleared and its age reset; an unreferenced frame is chosen
+ * once it is older than the working-set window. If a whole sweep finds no
+ * such frame, a second sweep takes any unreferenced frame.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		resident = new boolean[numPhysPages];
+		lastUsed = new long[numPhysPages];
+	}
+
+	public void pageLoaded(int ppn) {
+		resident[ppn] = true;
+		lastUsed[ppn] = Machine.timer().getTime();
+	}
+
+	public void pageEvicted(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public void pageFreed(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public void updateReferences() {
+	}
+
+	public int chooseVictim() {
+		long now = Machine.timer().getTime();
+
+		for (int i = 0; i < 2 * resident.length; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % resident.length;
+
+			if (!resident[ppn] || !VMKernel.isEvictable(ppn))
+				continue;
+
+			if (VMKernel.clearUsedBits(ppn)) {
+				lastUsed[ppn] = now;
+				continue;
+			}
+
+			// frames in the working set are only taken on the second sweep
+			if (i < resident.length && now - lastUsed[ppn] <= workingSetWindow)
+				continue;
+
+			return ppn;
+		}
+
+		return -1;
+	}
+
+	/** The frame the hand examines next. */
+	private int hand = 0;
+
+	private boolean[] resident;
+
+	/**
+	 * The time at which the hand last found each frame referenced, or at
+	 * which it was filled.
+	 */
+	private long[] lastUsed;
+
+	/**
+	 * The age in ticks beyond which an unreferenced page is considered out of
+	 * its process's working set.
+	 */
+	private static final long workingSetWindow = Config.getInteger(
+			"VMKernel.workingSetWindow", 10000);
+}